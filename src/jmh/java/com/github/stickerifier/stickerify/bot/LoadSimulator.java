@@ -0,0 +1,306 @@
+package com.github.stickerifier.stickerify.bot;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.util.concurrent.Executors.newThreadPerTaskExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.pengrad.telegrambot.TelegramBot;
+import mockwebserver3.Dispatcher;
+import mockwebserver3.MockResponse;
+import mockwebserver3.MockWebServer;
+import mockwebserver3.RecordedRequest;
+import okio.Buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+
+/**
+ * End-to-end load simulator running the bot against a fake Bot API server.
+ * <p>
+ * The server serves {@code getUpdates} batches sent by a number of simulated users, each one sending either a command
+ * or a file picked in round-robin from the media corpus, serves the downloads of the files
+ * and accepts the answers after a configurable latency.
+ * The time between the first delivery of an update and its answer is recorded, and once every update is answered
+ * the latency percentiles and the throughput are printed.
+ * <p>
+ * The simulation is configured with the following system properties:
+ * <ul>
+ *     <li>{@code load.users}: the number of simulated users, 10 by default
+ *     <li>{@code load.requests}: the number of requests sent by each user, 10 by default
+ *     <li>{@code load.rate}: the requests per second sent by all the users, 0 (default) to send them all at once
+ *     <li>{@code load.textRatio}: the fraction of requests being commands instead of files, 0.1 by default
+ *     <li>{@code load.latency}: the milliseconds the server waits before answering any request, 20 by default
+ *     <li>{@code load.corpus}: a directory containing the media to send, some of the test resources by default
+ *     <li>{@code load.timeout}: the seconds after which the simulation is stopped, 600 by default
+ * </ul>
+ * Every file is sent with a different unique identifier, so that no conversion is served from the cache.
+ * The bot itself is configured through its usual environment variables, such as {@code CONCURRENT_THREADS}.
+ */
+public final class LoadSimulator {
+
+	private static final List<String> DEFAULT_CORPUS = List.of("big.jpg", "detailed.jpg", "valid.png", "static.webp",
+			"valid.tiff", "valid.psd", "valid.gif", "short_low_fps.webm", "animated_sticker.tgs");
+	private static final Map<String, String> VIDEO_MIME_TYPES = Map.of(".gif", "image/gif", ".webm", "video/webm",
+			".mp4", "video/mp4", ".mov", "video/quicktime");
+	private static final Pattern OFFSET_PATTERN = Pattern.compile("(?:^|&)offset=(\\d+)");
+	private static final Pattern FILE_ID_PATTERN = Pattern.compile("(?:^|&)file_id=([^&]+)");
+	private static final Pattern CHAT_ID_PATTERN = Pattern.compile("(?:^|&)chat_id=(-?\\d+)|name=\"chat_id\"[\\s\\S]*?\\r\\n\\r\\n(-?\\d+)");
+	private static final int BATCH_SIZE = 100;
+
+	private final int users = Integer.getInteger("load.users", 10);
+	private final int requestsPerUser = Integer.getInteger("load.requests", 10);
+	private final double rate = Double.parseDouble(System.getProperty("load.rate", "0"));
+	private final double textRatio = Double.parseDouble(System.getProperty("load.textRatio", "0.1"));
+	private final long latencyMillis = Long.getLong("load.latency", 20);
+	private final Duration timeout = Duration.ofSeconds(Long.getLong("load.timeout", 600));
+
+	private final Map<String, byte[]> corpus = new LinkedHashMap<>();
+	private final List<String> updates = new ArrayList<>();
+	private final Map<Integer, Long> deliveryTimes = new ConcurrentHashMap<>();
+	private final Map<Integer, Long> latencies = new ConcurrentHashMap<>();
+	private final Map<String, LongAdder> answers = new ConcurrentHashMap<>();
+	private final LongAdder downloadedBytes = new LongAdder();
+	private CountDownLatch pendingAnswers;
+	private volatile long startTime;
+
+	public static void main(String[] args) throws Exception {
+		new LoadSimulator().run();
+	}
+
+	private void run() throws Exception {
+		loadCorpus();
+		createUpdates();
+
+		try (var server = new MockWebServer()) {
+			server.setDispatcher(new FakeBotApi());
+			server.start();
+
+			var bot = new TelegramBot.Builder("token")
+					.apiUrl(server.url("api/").toString())
+					.fileApiUrl(server.url("files/").toString())
+					.updateListenerSleep(100)
+					.build();
+
+			System.out.printf("Simulating %d users sending %d requests each, %d files in the corpus%n", users, requestsPerUser, corpus.size());
+
+			startTime = System.nanoTime();
+			var stickerify = new Stickerify(bot, newThreadPerTaskExecutor(Thread.ofVirtual().name("Virtual-", 0).factory()));
+			var completed = pendingAnswers.await(timeout.toMillis(), MILLISECONDS);
+			var elapsedNanos = System.nanoTime() - startTime;
+
+			stickerify.shutdown(Duration.ofSeconds(5));
+			printReport(completed, elapsedNanos);
+		}
+	}
+
+	private void loadCorpus() throws IOException, URISyntaxException {
+		var corpusDirectory = System.getProperty("load.corpus");
+
+		if (corpusDirectory != null) {
+			var files = Objects.requireNonNull(new File(corpusDirectory).listFiles(File::isFile), "The corpus directory doesn't exist");
+			Arrays.sort(files);
+			for (var file : files) {
+				corpus.put(file.getName(), Files.readAllBytes(file.toPath()));
+			}
+		} else {
+			for (var fileName : DEFAULT_CORPUS) {
+				var resource = Objects.requireNonNull(getClass().getClassLoader().getResource(fileName), fileName);
+				corpus.put(fileName, Files.readAllBytes(new File(resource.toURI()).toPath()));
+			}
+		}
+	}
+
+	/**
+	 * Creates the updates of every user, interleaving them as if users were sending requests at the same time.
+	 * Each update is sent from a different chat, used to match it with its answer.
+	 */
+	private void createUpdates() {
+		var fileNames = List.copyOf(corpus.keySet());
+		var totalRequests = users * requestsPerUser;
+		var textInterval = textRatio > 0 ? Math.max(1, Math.round(1 / textRatio)) : Long.MAX_VALUE;
+		var fileIndex = 0;
+
+		for (int updateId = 1; updateId <= totalRequests; updateId++) {
+			var userId = 1000 + updateId % users;
+			String content;
+
+			if (updateId % textInterval == 0) {
+				content = "\"text\": \"/help\"";
+			} else {
+				var fileName = fileNames.get(fileIndex++ % fileNames.size());
+				content = createDocument(fileName, updateId);
+			}
+
+			updates.add("""
+					{"update_id": %1$d, "message": {"message_id": %1$d, "date": 0, "from": {"id": %2$d}, "chat": {"id": %1$d}, %3$s}}\
+					""".formatted(updateId, userId, content));
+		}
+
+		pendingAnswers = new CountDownLatch(totalRequests);
+	}
+
+	private String createDocument(String fileName, int updateId) {
+		var mimeType = VIDEO_MIME_TYPES.entrySet().stream()
+				.filter(entry -> fileName.endsWith(entry.getKey()))
+				.map(entry -> ", \"mime_type\": \"" + entry.getValue() + "\"")
+				.findFirst()
+				.orElse("");
+
+		return """
+				"document": {"file_id": "%s", "file_unique_id": "unique-%d", "file_size": %d%s}\
+				""".formatted(fileName, updateId, corpus.get(fileName).length, mimeType);
+	}
+
+	private void printReport(boolean completed, long elapsedNanos) {
+		var sortedLatencies = latencies.values().stream().mapToLong(Long::longValue).sorted().toArray();
+		var elapsedSeconds = (double) elapsedNanos / SECONDS.toNanos(1);
+
+		System.out.println();
+		System.out.printf("Answered %d of %d requests in %.2f s%s%n", sortedLatencies.length, updates.size(), elapsedSeconds,
+				completed ? "" : " (timed out)");
+		System.out.printf("Throughput: %.2f requests/s, %.2f MB/s downloaded%n", sortedLatencies.length / elapsedSeconds,
+				downloadedBytes.sum() / 1e6 / elapsedSeconds);
+
+		if (sortedLatencies.length > 0) {
+			System.out.printf("Latency (ms): p50=%d p90=%d p99=%d max=%d%n", percentile(sortedLatencies, 50),
+					percentile(sortedLatencies, 90), percentile(sortedLatencies, 99),
+					NANOSECONDS.toMillis(sortedLatencies[sortedLatencies.length - 1]));
+		}
+
+		answers.forEach((method, count) -> System.out.printf("%s: %d%n", method, count.sum()));
+	}
+
+	private static long percentile(long[] sortedNanos, int percentile) {
+		var index = (int) Math.ceil(percentile / 100.0 * sortedNanos.length) - 1;
+		return NANOSECONDS.toMillis(sortedNanos[Math.max(0, index)]);
+	}
+
+	/**
+	 * Fake Bot API server, answering every request based on its path.
+	 */
+	private final class FakeBotApi extends Dispatcher {
+
+		@Override
+		public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+			var path = Objects.requireNonNull(request.getPath());
+
+			if (path.endsWith("/getUpdates")) {
+				return getUpdates(request.getBody().readUtf8());
+			}
+
+			Thread.sleep(latencyMillis);
+
+			if (path.endsWith("/getFile")) {
+				return getFile(request.getBody().readUtf8());
+			}
+			if (path.startsWith("/files/")) {
+				return download(path.substring(path.lastIndexOf('/') + 1));
+			}
+			if (path.endsWith("/sendDocument") || path.endsWith("/sendMessage")) {
+				return answer(path.substring(path.lastIndexOf('/') + 1), request.getBody().readString(ISO_8859_1));
+			}
+
+			return new MockResponse.Builder().code(404).body("{ok: false, description: \"Not Found\"}").build();
+		}
+
+		/**
+		 * Serves the updates available at the requested offset, as many as the arrival rate allows.
+		 * If none is available yet, the response is delayed as Telegram does with long polling.
+		 */
+		private MockResponse getUpdates(String body) throws InterruptedException {
+			var matcher = OFFSET_PATTERN.matcher(body);
+			var offset = matcher.find() ? Integer.parseInt(matcher.group(1)) : 1;
+			var from = Math.max(0, offset - 1);
+			var to = Math.min(from + BATCH_SIZE, availableUpdates());
+
+			if (from >= to) {
+				Thread.sleep(100);
+				return new MockResponse.Builder().body("{ok: true, result: []}").build();
+			}
+
+			var now = System.nanoTime();
+			for (int updateId = from + 1; updateId <= to; updateId++) {
+				deliveryTimes.putIfAbsent(updateId, now);
+			}
+
+			return new MockResponse.Builder().body("{ok: true, result: [" + String.join(",", updates.subList(from, to)) + "]}").build();
+		}
+
+		private int availableUpdates() {
+			if (rate <= 0) {
+				return updates.size();
+			}
+
+			var elapsedSeconds = (double) (System.nanoTime() - startTime) / SECONDS.toNanos(1);
+			return (int) Math.min(updates.size(), elapsedSeconds * rate + 1);
+		}
+
+		private MockResponse getFile(String body) {
+			var matcher = FILE_ID_PATTERN.matcher(body);
+			var fileId = matcher.find() ? matcher.group(1) : "";
+			var content = corpus.get(fileId);
+
+			if (content == null) {
+				return new MockResponse.Builder().body("{ok: false, error_code: 400, description: \"Bad Request: invalid file_id\"}").build();
+			}
+
+			return new MockResponse.Builder().body("""
+					{ok: true, result: {file_id: "%1$s", file_unique_id: "%1$s", file_path: "%1$s", file_size: %2$d}}\
+					""".formatted(fileId, content.length)).build();
+		}
+
+		private MockResponse download(String fileName) {
+			var content = corpus.get(fileName);
+
+			if (content == null) {
+				return new MockResponse.Builder().code(404).build();
+			}
+
+			downloadedBytes.add(content.length);
+
+			try (var buffer = new Buffer()) {
+				buffer.write(content);
+				return new MockResponse.Builder().body(buffer).build();
+			}
+		}
+
+		/**
+		 * Records the answer to an update, matching it through the chat it was sent to.
+		 */
+		private MockResponse answer(String method, String body) {
+			var matcher = CHAT_ID_PATTERN.matcher(body);
+
+			if (matcher.find()) {
+				var chatId = Integer.parseInt(matcher.group(1) != null ? matcher.group(1) : matcher.group(2));
+				var deliveryTime = deliveryTimes.get(chatId);
+
+				if (deliveryTime != null && latencies.putIfAbsent(chatId, System.nanoTime() - deliveryTime) == null) {
+					answers.computeIfAbsent(method, _ -> new LongAdder()).increment();
+					pendingAnswers.countDown();
+				}
+			}
+
+			return new MockResponse.Builder().body("""
+					{ok: true, result: {message_id: 1, date: 0, chat: {id: 1}, document: {file_id: "converted", file_unique_id: "converted"}}}\
+					""").build();
+		}
+	}
+
+	private LoadSimulator() {
+	}
+}
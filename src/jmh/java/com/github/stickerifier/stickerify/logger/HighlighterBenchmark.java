@@ -0,0 +1,64 @@
+package com.github.stickerifier.stickerify.logger;
+
+import static com.github.stickerifier.stickerify.logger.HighlightHelper.START_GREEN;
+import static com.github.stickerifier.stickerify.logger.MessageHighlighter.CONTINUE_WHITE;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.regex.Pattern;
+
+/**
+ * Compares the message highlighting based on regular expressions, as it used to be implemented,
+ * against {@link MessageHighlighter} scanning the message once and highlighting it in a single pre-sized buffer.
+ * Run with {@code -prof gc} to compare the allocation rates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HighlighterBenchmark {
+
+	private static final Pattern MIME_TYPE_PATTERN = Pattern.compile(" (\\w+/[-+.\\w]+) ");
+
+	@Param({ "Received request from user 123456", "The file with image/vnd.microsoft.icon MIME type could not be converted" })
+	private String message;
+
+	private final MessageHighlighter messageHighlighter = new MessageHighlighter();
+	private ILoggingEvent event;
+
+	@Setup
+	public void setup() {
+		event = new LoggingEvent(message);
+	}
+
+	@Benchmark
+	public String regexHighlighting() {
+		var matcher = MIME_TYPE_PATTERN.matcher(message);
+
+		if (matcher.find()) {
+			var mimeType = matcher.group(1);
+			return message.replaceFirst(Pattern.quote(mimeType), START_GREEN + mimeType + CONTINUE_WHITE);
+		}
+
+		return message;
+	}
+
+	@Benchmark
+	public String scanningHighlighting() {
+		return messageHighlighter.convert(event);
+	}
+}
@@ -0,0 +1,73 @@
+package com.github.stickerifier.stickerify.media;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.github.stickerifier.stickerify.exception.MediaException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import ws.schild.jave.info.MultimediaInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+
+/**
+ * Measures the stages preceding the encoding of videos and animated stickers:
+ * the MIME type detection, the probe of the video with FFmpeg and the compliance check.
+ * The encoding itself is measured as part of {@link MediaHelperBenchmark}, since it can't be separated from FFmpeg's run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnimationStagesBenchmark {
+
+	@Param({ "valid.gif", "short_low_fps.webm", "no_conversion_needed.webm", "animated_sticker.tgs" })
+	private String fileName;
+
+	private final MimeTypeDetector detector = new MimeTypeDetector();
+	private File file;
+	private byte[] content;
+	private String mimeType;
+	private MultimediaInfo mediaInfo;
+
+	@Setup
+	public void setup() throws URISyntaxException, IOException, MediaException {
+		file = new File(getClass().getClassLoader().getResource(fileName).toURI());
+		content = Files.readAllBytes(file.toPath());
+		mimeType = detector.detect(content);
+
+		if (!fileName.endsWith(".tgs")) {
+			mediaInfo = MediaHelper.retrieveMultimediaInfo(file);
+		}
+	}
+
+	@Benchmark
+	public String detect() {
+		return detector.detect(content);
+	}
+
+	@Benchmark
+	public MultimediaInfo probe() throws MediaException {
+		return mediaInfo == null ? null : MediaHelper.retrieveMultimediaInfo(file);
+	}
+
+	@Benchmark
+	public boolean complianceCheck() throws MediaException {
+		return mediaInfo == null
+				? MediaHelper.isAnimatedStickerCompliant(MediaSource.of(content), mimeType)
+				: MediaHelper.isVideoCompliant(file, mediaInfo);
+	}
+}
@@ -0,0 +1,85 @@
+package com.github.stickerifier.stickerify.media;
+
+import static com.github.stickerifier.stickerify.media.MediaConstraints.MAX_SIDE_LENGTH;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.github.stickerifier.stickerify.cancellation.CancellationToken;
+import com.github.stickerifier.stickerify.exception.MediaException;
+import com.sksamuel.scrimage.ImmutableImage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Measures each stage of the conversion of an image in isolation,
+ * every stage starting from the output of the previous one computed during the setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ImageStagesBenchmark {
+
+	@Param({ "big.jpg", "detailed.jpg", "valid.psd", "valid.tiff", "valid.png" })
+	private String fileName;
+
+	private final MimeTypeDetector detector = new MimeTypeDetector();
+	private byte[] content;
+	private String mimeType;
+	private ImmutableImage image;
+	private ImmutableImage resizedImage;
+
+	@Setup
+	public void setup() throws URISyntaxException, IOException {
+		content = Files.readAllBytes(Path.of(getClass().getClassLoader().getResource(fileName).toURI()));
+		mimeType = detector.detect(content);
+		image = MediaHelper.toImage(MediaSource.of(content));
+		resizedImage = image.max(MAX_SIDE_LENGTH, MAX_SIDE_LENGTH);
+	}
+
+	@Benchmark
+	public String detect() {
+		return detector.detect(content);
+	}
+
+	@Benchmark
+	public ImmutableImage decode() {
+		return MediaHelper.toImage(MediaSource.of(content));
+	}
+
+	@Benchmark
+	public ImmutableImage resize() {
+		return image.max(MAX_SIDE_LENGTH, MAX_SIDE_LENGTH);
+	}
+
+	@Benchmark
+	public byte[] encode() throws MediaException {
+		return WebpEncoder.encode(resizedImage, CancellationToken.create());
+	}
+
+	@Benchmark
+	public boolean complianceCheck() {
+		return MediaHelper.isImageCompliant(image, mimeType);
+	}
+
+	@Benchmark
+	public boolean headerComplianceCheck() {
+		var header = ImageHeader.of(content);
+		return header != null && MediaHelper.isImageCompliant(header, mimeType);
+	}
+}
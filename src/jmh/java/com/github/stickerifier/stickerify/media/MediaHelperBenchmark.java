@@ -0,0 +1,62 @@
+package com.github.stickerifier.stickerify.media;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.github.stickerifier.stickerify.exception.MediaException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+
+/**
+ * Measures the whole conversion of every class of input supported by the bot,
+ * both reading the file from disk and keeping its content in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class MediaHelperBenchmark {
+
+	@Param({ "big.jpg", "detailed.jpg", "valid.psd", "valid.tiff", "valid.gif", "short_low_fps.webm", "animated_sticker.tgs" })
+	private String fileName;
+
+	private File file;
+	private byte[] content;
+
+	@Setup
+	public void setup() throws URISyntaxException, IOException {
+		file = new File(getClass().getClassLoader().getResource(fileName).toURI());
+		content = Files.readAllBytes(file.toPath());
+	}
+
+	@Benchmark
+	public File convertFile() throws MediaException {
+		var result = MediaHelper.convert(file);
+
+		if (result != null) {
+			result.delete();
+		}
+
+		return result;
+	}
+
+	@Benchmark
+	public ConvertedMedia convertContent() throws MediaException {
+		return MediaHelper.convert(content);
+	}
+}
@@ -0,0 +1,54 @@
+package com.github.stickerifier.stickerify.media;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import org.apache.tika.Tika;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+/**
+ * Compares the cost of a single MIME type detection creating a new {@link Tika} instance for every file
+ * against the shared {@link MimeTypeDetector}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MimeTypeDetectorBenchmark {
+
+	@Param({ "big.jpg", "valid.png", "static.webp", "valid.gif", "animated_sticker.tgs", "short_low_fps.webm", "valid.tiff", "valid.psd", "favicon.ico", "valid.svg", "document.txt" })
+	private String fileName;
+
+	private final MimeTypeDetector detector = new MimeTypeDetector();
+	private File file;
+
+	@Setup
+	public void setup() throws URISyntaxException {
+		file = new File(getClass().getClassLoader().getResource(fileName).toURI());
+	}
+
+	@Benchmark
+	public String newTikaPerCall() throws IOException {
+		return new Tika().detect(file);
+	}
+
+	@Benchmark
+	public String sharedDetector() throws IOException {
+		return detector.detect(file);
+	}
+}
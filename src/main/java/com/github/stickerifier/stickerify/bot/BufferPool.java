@@ -0,0 +1,37 @@
+package com.github.stickerifier.stickerify.bot;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of reusable direct buffers, used to avoid allocating a new buffer for every I/O operation.
+ * If the pool is empty a new buffer is created, and it will be retained once released as long as the pool isn't full.
+ */
+final class BufferPool {
+
+	private final int bufferSize;
+	private final BlockingQueue<ByteBuffer> buffers;
+
+	/**
+	 * Creates a new pool.
+	 *
+	 * @param bufferSize the capacity of each buffer
+	 * @param maxPooledBuffers the maximum number of buffers retained by the pool
+	 */
+	BufferPool(int bufferSize, int maxPooledBuffers) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<>(maxPooledBuffers);
+	}
+
+	ByteBuffer acquire() {
+		var buffer = buffers.poll();
+
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	void release(ByteBuffer buffer) {
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+}
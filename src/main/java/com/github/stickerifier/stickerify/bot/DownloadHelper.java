@@ -0,0 +1,238 @@
+package com.github.stickerifier.stickerify.bot;
+
+import static com.github.stickerifier.stickerify.media.MimeTypeDetector.HEADER_SIZE;
+import static com.github.stickerifier.stickerify.telegram.model.TelegramFile.MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.github.stickerifier.stickerify.cancellation.CancellationToken;
+import com.github.stickerifier.stickerify.exception.FileOperationException;
+import com.github.stickerifier.stickerify.exception.FileTooLargeException;
+import com.github.stickerifier.stickerify.exception.MediaException;
+import com.github.stickerifier.stickerify.exception.TelegramApiException;
+import com.github.stickerifier.stickerify.media.MediaHelper;
+import com.github.stickerifier.stickerify.metrics.MetricsHelper;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+final class DownloadHelper {
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final BufferPool BUFFER_POOL = new BufferPool(BUFFER_SIZE, 16);
+
+	/**
+	 * Downloads the file located at passed-in url, streaming its content straight to a new temp file.
+	 * The download is aborted as soon as the file exceeds the maximum size allowed by Telegram,
+	 * or if its first bytes show that the file is not supported.
+	 * Cancelling the token closes the connection, interrupting the transfer.
+	 *
+	 * @param httpClient the client used to download the file, shared with the bot
+	 * @param url the location of the file
+	 * @param token the token of the request the file belongs to
+	 * @return the downloaded file
+	 * @throws TelegramApiException if Telegram couldn't serve the file
+	 * @throws MediaException either if:
+	 * <ul>
+	 *     <li>the file is too large
+	 *     <li>the file is not supported
+	 *     <li>an error occurred writing the file
+	 *     <li>the request was cancelled
+	 * </ul>
+	 */
+	static File downloadFile(OkHttpClient httpClient, String url, CancellationToken token) throws TelegramApiException, MediaException {
+		var downloadedFile = createTempFile();
+		var deleteTempFile = true;
+		var call = newCall(httpClient, url);
+
+		try (var _ = token.onCancel(call::cancel);
+				var body = openBody(call);
+				var channel = FileChannel.open(downloadedFile.toPath(), WRITE, TRUNCATE_EXISTING)) {
+			transfer(body.source(), channel, token);
+			MetricsHelper.recordTempFile(downloadedFile.toPath(), channel.size());
+			deleteTempFile = false;
+
+			return downloadedFile;
+		} catch (IOException e) {
+			token.throwIfCancelled();
+			throw new FileOperationException("An error occurred downloading the file", e);
+		} finally {
+			if (deleteTempFile) {
+				deleteFile(downloadedFile);
+			}
+		}
+	}
+
+	/**
+	 * Downloads the file located at passed-in url, reading its content straight into an array sized after the file.
+	 * The download is aborted as soon as the file exceeds the maximum size allowed by Telegram,
+	 * or if its first bytes show that the file is not supported.
+	 * Cancelling the token closes the connection, interrupting the transfer.
+	 *
+	 * @param httpClient the client used to download the file, shared with the bot
+	 * @param url the location of the file
+	 * @param size the size of the file reported by Telegram
+	 * @param token the token of the request the file belongs to
+	 * @return the content of the file
+	 * @throws TelegramApiException if Telegram couldn't serve the file
+	 * @throws MediaException either if:
+	 * <ul>
+	 *     <li>the file is too large
+	 *     <li>the file is not supported
+	 *     <li>an error occurred reading the file
+	 *     <li>the file is shorter than the reported size
+	 *     <li>the request was cancelled
+	 * </ul>
+	 */
+	static byte[] downloadContent(OkHttpClient httpClient, String url, long size, CancellationToken token) throws TelegramApiException, MediaException {
+		if (size > MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES) {
+			throw new FileTooLargeException("The file is {} bytes long, exceeding the allowed size", size);
+		}
+
+		var call = newCall(httpClient, url);
+
+		try (var _ = token.onCancel(call::cancel); var responseBody = openBody(call)) {
+			var body = responseBody.byteStream();
+			var content = new byte[(int) size];
+
+			var readBytes = body.readNBytes(content, 0, Math.min(content.length, HEADER_SIZE));
+			MediaHelper.checkSupportedHeader(readBytes == content.length ? content : Arrays.copyOf(content, readBytes));
+
+			readBytes += body.readNBytes(content, readBytes, content.length - readBytes);
+			if (readBytes < content.length) {
+				throw new FileOperationException("The download ended after {} bytes, but the file is {} bytes long", readBytes, content.length);
+			}
+
+			var exceedingContent = body.readNBytes((int) MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES - readBytes + 1);
+			if (exceedingContent.length == 0) {
+				return content;
+			}
+
+			var totalBytes = readBytes + exceedingContent.length;
+			if (totalBytes > MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES) {
+				throw new FileTooLargeException("The file exceeds the allowed size of {} bytes", MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES);
+			}
+
+			var fullContent = Arrays.copyOf(content, totalBytes);
+			System.arraycopy(exceedingContent, 0, fullContent, readBytes, exceedingContent.length);
+
+			return fullContent;
+		} catch (IOException e) {
+			token.throwIfCancelled();
+			throw new FileOperationException("An error occurred downloading the file", e);
+		}
+	}
+
+	private static Call newCall(OkHttpClient httpClient, String url) {
+		return httpClient.newCall(new Request.Builder().url(url).get().build());
+	}
+
+	private static ResponseBody openBody(Call call) throws TelegramApiException, MediaException, IOException {
+		var response = call.execute();
+		var body = response.body();
+
+		if (response.code() != 200) {
+			response.close();
+			throw new TelegramApiException("Telegram couldn't serve the file: the response status code is {}", response.code());
+		}
+
+		var contentLength = body.contentLength();
+		if (contentLength > MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES) {
+			response.close();
+			throw new FileTooLargeException("The file is {} bytes long, exceeding the allowed size", contentLength);
+		}
+
+		return body;
+	}
+
+	/**
+	 * Copies the content of the response into the channel using a pooled direct buffer,
+	 * checking the first bytes of the response as soon as they are received, before anything is written.
+	 * The response is read as a channel, so its bytes are copied only once before reaching the file.
+	 *
+	 * @param source the response to read
+	 * @param channel the destination of the bytes
+	 * @param token the token of the request the file belongs to, checked every time the buffer is full
+	 * @throws IOException if an error occurs reading or writing the bytes
+	 * @throws MediaException if the file is either too large or not supported, or if the request was cancelled
+	 */
+	private static void transfer(ReadableByteChannel source, FileChannel channel, CancellationToken token) throws IOException, MediaException {
+		var buffer = BUFFER_POOL.acquire();
+		long transferredBytes = 0;
+		var headerChecked = false;
+
+		try {
+			while (source.read(buffer) != -1) {
+				if (!headerChecked && buffer.position() >= HEADER_SIZE) {
+					checkHeader(buffer, HEADER_SIZE);
+					headerChecked = true;
+				}
+
+				if (!buffer.hasRemaining()) {
+					token.throwIfCancelled();
+					transferredBytes = write(buffer, channel, transferredBytes);
+				}
+			}
+
+			if (!headerChecked) {
+				checkHeader(buffer, buffer.position());
+			}
+
+			write(buffer, channel, transferredBytes);
+		} finally {
+			BUFFER_POOL.release(buffer);
+		}
+	}
+
+	private static long write(ByteBuffer buffer, FileChannel channel, long transferredBytes) throws IOException, MediaException {
+		buffer.flip();
+
+		var totalBytes = transferredBytes + buffer.remaining();
+		if (totalBytes > MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES) {
+			throw new FileTooLargeException("The file exceeds the allowed size of {} bytes", MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES);
+		}
+
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+
+		return totalBytes;
+	}
+
+	private static void checkHeader(ByteBuffer buffer, int length) throws MediaException {
+		var header = new byte[length];
+		buffer.get(0, header);
+
+		MediaHelper.checkSupportedHeader(header);
+	}
+
+	private static File createTempFile() throws FileOperationException {
+		try {
+			return File.createTempFile("OriginalFile-", null);
+		} catch (IOException e) {
+			throw new FileOperationException("An error occurred creating a new temp file", e);
+		}
+	}
+
+	private static void deleteFile(File file) throws FileOperationException {
+		try {
+			Files.deleteIfExists(file.toPath());
+		} catch (IOException e) {
+			throw new FileOperationException("An error occurred deleting the file", e);
+		}
+	}
+
+	private DownloadHelper() {
+		throw new UnsupportedOperationException();
+	}
+}
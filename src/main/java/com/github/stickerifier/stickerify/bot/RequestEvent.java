@@ -0,0 +1,30 @@
+package com.github.stickerifier.stickerify.bot;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event spanning the processing of a request, from the moment a worker picks it up until it's answered.
+ */
+@Name("com.github.stickerifier.stickerify.Request")
+@Label("Request")
+@Category("Stickerify")
+@Description("Processing of a request sent to the bot")
+@StackTrace(false)
+final class RequestEvent extends Event {
+
+	@Label("Work Class")
+	String workClass;
+
+	@Label("File Size")
+	@DataAmount
+	long fileSize;
+
+	@Label("Outcome")
+	String outcome;
+}
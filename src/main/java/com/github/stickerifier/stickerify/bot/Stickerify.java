@@ -5,22 +5,38 @@ import static com.github.stickerifier.stickerify.telegram.Answer.ERROR;
 import static com.github.stickerifier.stickerify.telegram.Answer.FILE_ALREADY_VALID;
 import static com.github.stickerifier.stickerify.telegram.Answer.FILE_READY;
 import static com.github.stickerifier.stickerify.telegram.Answer.FILE_TOO_LARGE;
+import static com.github.stickerifier.stickerify.telegram.Answer.TOO_MANY_REQUESTS;
 import static com.pengrad.telegrambot.model.request.ParseMode.MarkdownV2;
 import static java.util.HashSet.newHashSet;
-import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newThreadPerTaskExecutor;
 
+import com.github.stickerifier.stickerify.cache.CachedConversion;
+import com.github.stickerifier.stickerify.cache.ConversionCache;
+import com.github.stickerifier.stickerify.cache.SingleFlight;
+import com.github.stickerifier.stickerify.cancellation.CancellationToken;
 import com.github.stickerifier.stickerify.exception.BaseException;
 import com.github.stickerifier.stickerify.exception.CorruptedVideoException;
-import com.github.stickerifier.stickerify.exception.FileOperationException;
+import com.github.stickerifier.stickerify.exception.FileTooLargeException;
 import com.github.stickerifier.stickerify.exception.MediaException;
+import com.github.stickerifier.stickerify.exception.RequestCancelledException;
 import com.github.stickerifier.stickerify.exception.TelegramApiException;
 import com.github.stickerifier.stickerify.media.MediaHelper;
+import com.github.stickerifier.stickerify.metrics.MetricsHelper;
+import com.github.stickerifier.stickerify.metrics.MetricsServer;
+import com.github.stickerifier.stickerify.metrics.RequestMetrics;
+import com.github.stickerifier.stickerify.metrics.Stage;
+import com.github.stickerifier.stickerify.process.ProcessHelper;
+import com.github.stickerifier.stickerify.scheduler.Admission;
+import com.github.stickerifier.stickerify.scheduler.RequestScheduler;
+import com.github.stickerifier.stickerify.scheduler.UserThrottle;
+import com.github.stickerifier.stickerify.scheduler.WorkClass;
 import com.github.stickerifier.stickerify.telegram.Answer;
 import com.github.stickerifier.stickerify.telegram.model.TelegramFile;
 import com.github.stickerifier.stickerify.telegram.model.TelegramRequest;
 import com.pengrad.telegrambot.ExceptionHandler;
 import com.pengrad.telegrambot.TelegramBot;
 import com.pengrad.telegrambot.UpdatesListener;
+import com.pengrad.telegrambot.model.File;
 import com.pengrad.telegrambot.model.LinkPreviewOptions;
 import com.pengrad.telegrambot.model.Update;
 import com.pengrad.telegrambot.request.BaseRequest;
@@ -28,17 +44,27 @@ import com.pengrad.telegrambot.request.GetFile;
 import com.pengrad.telegrambot.request.GetUpdates;
 import com.pengrad.telegrambot.request.SendDocument;
 import com.pengrad.telegrambot.request.SendMessage;
+import com.pengrad.telegrambot.request.SetWebhook;
 import com.pengrad.telegrambot.response.BaseResponse;
+import com.pengrad.telegrambot.response.SendResponse;
+import okhttp3.OkHttpClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadFactory;
 
 /**
@@ -46,152 +72,549 @@ import java.util.concurrent.ThreadFactory;
  *
  * @author Roberto Cella
  */
-public class Stickerify {
+public class Stickerify implements AutoCloseable {
 
 	private static final Logger LOGGER = LoggerFactory.getLogger(Stickerify.class);
 	private static final String BOT_TOKEN = System.getenv("STICKERIFY_TOKEN");
+	private static final OkHttpClient HTTP_CLIENT = new OkHttpClient();
 	private static final ThreadFactory VIRTUAL_THREAD_FACTORY = Thread.ofVirtual().name("Virtual-", 0).factory();
+	private static final Duration ADMISSION_TIMEOUT = Duration.ofSeconds(1);
+	private static final String CANCELLED = "CANCELLED";
 
 	private final TelegramBot bot;
 	private final Executor executor;
+	private final RequestScheduler scheduler;
+	private final ConversionCache cache;
+	private final SingleFlight<String, CachedConversion> conversions = new SingleFlight<>();
+	private final long inMemoryMaxFileSize;
+	private final Duration requestDeadline;
+	private final Map<Long, Set<CancellationToken>> activeTokens = new ConcurrentHashMap<>();
+	private WebhookServer webhookServer;
+	private MetricsServer metricsServer;
 
 	/**
 	 * Instantiate the bot processing requests with virtual threads.
+	 * Updates are received through a webhook if {@code WEBHOOK_PORT} is set, otherwise with long polling.
 	 *
 	 * @see Stickerify
 	 */
 	public Stickerify() {
-		this(new TelegramBot.Builder(BOT_TOKEN).updateListenerSleep(500).build(), newFixedThreadPool(getMaxConcurrentThreads(), VIRTUAL_THREAD_FACTORY));
+		this(new TelegramBot.Builder(BOT_TOKEN).okHttpClient(HTTP_CLIENT).updateListenerSleep(500).build(), newThreadPerTaskExecutor(VIRTUAL_THREAD_FACTORY), getWebhookSettings());
 	}
 
 	/**
-	 * Instantiate the bot processing requests with an arbitrary executor.
+	 * Instantiate the bot receiving updates with long polling and processing requests with an arbitrary executor,
+	 * used to run the workers of each lane of the scheduler.
 	 *
 	 * @see Stickerify
 	 */
 	Stickerify(TelegramBot bot, Executor executor) {
+		this(bot, executor, null);
+	}
+
+	/**
+	 * Instantiate the bot processing requests with an arbitrary executor,
+	 * receiving updates through the webhook described by the settings, or with long polling if they are {@code null}.
+	 *
+	 * @see Stickerify
+	 */
+	Stickerify(TelegramBot bot, Executor executor, WebhookSettings webhookSettings) {
 		this.bot = bot;
 		this.executor = executor;
+		this.scheduler = new RequestScheduler(executor, getMaxConcurrentThreads(), getReservedLaneThreads(), getUserThrottle(), getMaxQueuedRequests(), getMaxQueuedWork(), getMaxQueuedWorkPerUser());
+		this.cache = new ConversionCache(getCacheSize(), getCacheIndexPath());
+		this.inMemoryMaxFileSize = getInMemoryMaxFileSize();
+		this.requestDeadline = getRequestDeadline();
+
+		var metricsPort = getMetricsPort();
+		if (metricsPort != null) {
+			startMetricsServer(metricsPort);
+		}
+
+		if (webhookSettings == null) {
+			ExceptionHandler exceptionHandler = e -> LOGGER.atError().log("There was an unexpected failure: {}", e.getMessage());
+
+			bot.setUpdatesListener(this::handleUpdates, exceptionHandler, new GetUpdates().timeout(50));
+		} else {
+			startWebhook(webhookSettings);
+		}
+	}
+
+	private void startWebhook(WebhookSettings settings) {
+		try {
+			webhookServer = new WebhookServer(settings, this::handleUpdate);
+		} catch (IOException e) {
+			throw new UncheckedIOException("Unable to start the webhook server", e);
+		}
+
+		if (settings.publicUrl() != null) {
+			try {
+				execute(new SetWebhook().url(settings.publicUrl() + settings.path()).secretToken(settings.secretToken()));
+			} catch (TelegramApiException e) {
+				LOGGER.atError().setCause(e).log("Unable to register the webhook");
+			}
+		}
+	}
 
-		ExceptionHandler exceptionHandler = e -> LOGGER.atError().log("There was an unexpected failure: {}", e.getMessage());
+	private void startMetricsServer(int port) {
+		try {
+			metricsServer = new MetricsServer(port, this::scrapeMetrics);
+		} catch (IOException e) {
+			LOGGER.atError().setCause(e).log("Unable to start the metrics server");
+		}
+	}
 
-		bot.setUpdatesListener(this::handleUpdates, exceptionHandler, new GetUpdates().timeout(50));
+	private String scrapeMetrics() {
+		return MetricsHelper.scrape(scheduler.getStatistics(), ProcessHelper.getRunningProcesses(),
+				ProcessHelper.getUsedProcessBudget(), ProcessHelper.getProcessBudget());
+	}
+
+	/**
+	 * Retrieves the port the webhook server is listening on.
+	 *
+	 * @return the port, or {@code -1} if updates are received with long polling
+	 */
+	int getWebhookPort() {
+		return webhookServer == null ? -1 : webhookServer.getPort();
 	}
 
+	/**
+	 * Schedules the updates received, confirming only the ones admitted:
+	 * if the bot is at capacity, the remaining updates are left to Telegram, which will send them again.
+	 *
+	 * @param updates the updates to process
+	 * @return the identifier of the last update admitted
+	 */
 	private int handleUpdates(List<Update> updates) {
-		updates.forEach(update -> executor.execute(() -> {
-			if (update.message() != null) {
-				var request = new TelegramRequest(update.message());
-				LOGGER.atInfo().log("Received {}", request.getDescription());
+		var lastAdmittedUpdate = UpdatesListener.CONFIRMED_UPDATES_NONE;
 
-				answer(request);
+		for (var update : updates) {
+			if (!handleUpdate(update)) {
+				LOGGER.atWarn().log("The bot is at capacity, {} updates will be received again", updates.size() - updates.indexOf(update));
+				return lastAdmittedUpdate;
 			}
-		}));
+
+			lastAdmittedUpdate = update.updateId();
+		}
 
 		return UpdatesListener.CONFIRMED_UPDATES_ALL;
 	}
 
-	private void answer(TelegramRequest request) {
+	/**
+	 * Schedules the answer to the message contained in the update, if any.
+	 * The request is given a token expiring after the time configured with {@code REQUEST_DEADLINE_SECONDS},
+	 * counted from its admission, and cancelled earlier if the user blocks the bot in the meantime.
+	 * If the user already has too much work pending, the request is dropped and the user is asked to wait.
+	 *
+	 * @param update the update to process
+	 * @return {@code false} if the bot had no capacity to admit the update
+	 */
+	private boolean handleUpdate(Update update) {
+		if (update.message() == null) {
+			return true;
+		}
+
+		var request = new TelegramRequest(update.message());
+		var token = CancellationToken.withDeadline(requestDeadline);
+		track(request, token);
+
+		var admission = scheduler.trySchedule(request, () -> {
+			LOGGER.atInfo().log("Received {}", request.getDescription());
+
+			answer(request, token);
+		}, ADMISSION_TIMEOUT);
+
+		if (admission != Admission.ADMITTED) {
+			untrack(request, token);
+		}
+
+		if (admission == Admission.USER_LIMIT_REACHED) {
+			LOGGER.atInfo().log("Dropping the {} as too much work is pending for the user", request.getDescription());
+			executor.execute(() -> answerText(TOO_MANY_REQUESTS, request, RequestMetrics.NONE));
+		}
+
+		return admission != Admission.REFUSED;
+	}
+
+	private void track(TelegramRequest request, CancellationToken token) {
+		activeTokens.computeIfAbsent(request.getChatId(), _ -> ConcurrentHashMap.newKeySet()).add(token);
+	}
+
+	private void untrack(TelegramRequest request, CancellationToken token) {
+		activeTokens.computeIfPresent(request.getChatId(), (_, tokens) -> {
+			tokens.remove(token);
+			return tokens.isEmpty() ? null : tokens;
+		});
+		token.close();
+	}
+
+	/**
+	 * Cancels all the requests of the chat which are either queued or being processed.
+	 *
+	 * @param chatId the chat whose requests are no longer worth answering
+	 * @param reason why the requests are cancelled
+	 */
+	private void cancelChat(Long chatId, String reason) {
+		var tokens = activeTokens.get(chatId);
+
+		if (tokens != null) {
+			tokens.forEach(token -> token.cancel(reason));
+		}
+	}
+
+	private void answer(TelegramRequest request, CancellationToken token) {
 		var file = request.getFile();
+		var event = new RequestEvent();
+		event.begin();
+		var metrics = MetricsHelper.startRequest();
 
-		if (file != null) {
-			answerFile(request, file);
-		} else {
-			answerText(request);
+		try {
+			token.throwIfCancelled();
+
+			if (file != null) {
+				answerFile(request, file, token, metrics);
+			} else {
+				answerText(request, metrics);
+			}
+		} catch (RequestCancelledException e) {
+			processCancellation(request, e, metrics);
+		} finally {
+			untrack(request, token);
+			event.outcome = MetricsHelper.finishRequest(metrics);
+
+			if (event.shouldCommit()) {
+				event.workClass = WorkClass.of(request).name();
+				event.fileSize = file == null || file.size() == null ? 0 : file.size();
+				event.commit();
+			}
 		}
 	}
 
-	private void answerFile(TelegramRequest request, TelegramFile file) {
+	private void answerFile(TelegramRequest request, TelegramFile file, CancellationToken token, RequestMetrics metrics) throws RequestCancelledException {
 		if (file == TelegramFile.NOT_SUPPORTED) {
-			answerText(ERROR, request);
+			answerText(ERROR, request, metrics);
 		} else if (file.canBeDownloaded()) {
-			answerFile(request, file.id());
+			var cachedConversion = cache.get(file.uniqueId());
+
+			if (cachedConversion != null) {
+				answerCachedFile(request, file, cachedConversion, metrics);
+			} else {
+				convertAndAnswerFile(request, file, token, metrics);
+			}
 		} else {
 			LOGGER.atInfo().log("Passed-in file is too large");
 
-			answerText(FILE_TOO_LARGE, request);
+			answerText(FILE_TOO_LARGE, request, metrics);
 		}
 	}
 
-	private void answerFile(TelegramRequest request, String fileId) {
-		Set<Path> pathsToDelete = newHashSet(2);
+	/**
+	 * Answers the request reusing the result of a previous conversion of the same file:
+	 * if the file had to be converted, the document already sent is sent again referencing its identifier.
+	 *
+	 * @param request the request to answer
+	 * @param file the file sent by the user
+	 * @param cachedConversion the result of the previous conversion
+	 * @param metrics the metrics of the request
+	 */
+	private void answerCachedFile(TelegramRequest request, TelegramFile file, CachedConversion cachedConversion, RequestMetrics metrics) {
+		LOGGER.atDebug().log("Reusing the previous conversion of the file {}", file.uniqueId());
+
+		if (cachedConversion.isAlreadyValid()) {
+			answerText(FILE_ALREADY_VALID, request, metrics);
+			return;
+		}
 
 		try {
-			var originalFile = retrieveFile(fileId);
-			pathsToDelete.add(originalFile.toPath());
+			execute(createDocumentAnswer(request, new SendDocument(request.getChatId(), cachedConversion.fileId())));
+			metrics.recordOutcome(FILE_READY.name());
+		} catch (TelegramApiException e) {
+			if (isInvalidFileReference(e)) {
+				cache.remove(file.uniqueId());
+			}
 
-			var outputFile = MediaHelper.convert(originalFile);
+			processFailure(request, e, metrics);
+		}
+	}
 
-			if (outputFile == null) {
-				answerText(FILE_ALREADY_VALID, request);
+	/**
+	 * Checks if Telegram rejected a request because the identifier of the file it references is no longer valid:
+	 * other failures, such as the user blocking the bot or the service being unavailable, say nothing about the file.
+	 *
+	 * @param e the failure returned by Telegram
+	 * @return {@code true} if the file identifier was rejected
+	 */
+	private static boolean isInvalidFileReference(TelegramApiException e) {
+		var exceptionMessage = e.getMessage();
+
+		return exceptionMessage.contains("Bad Request") && (exceptionMessage.contains("file identifier") || exceptionMessage.contains("file_id"));
+	}
+
+	/**
+	 * Converts the file and answers the request, unless the same file is already being converted for another request:
+	 * in that case, the request waits for that conversion and is answered reusing its result.
+	 * <p>
+	 * If the shared conversion fails because the file couldn't be converted, all the waiting requests receive the same failure.
+	 * If it fails for reasons tied to the request which started it, such as its user blocking the bot,
+	 * one of the waiting requests takes over the conversion.
+	 * A request giving up waiting, when its deadline expires, doesn't affect the shared conversion.
+	 *
+	 * @param request the request to answer
+	 * @param file the file sent by the user
+	 * @param token the token of the request
+	 * @param metrics the metrics of the request
+	 * @throws RequestCancelledException if the request was cancelled while waiting for the conversion
+	 */
+	private void convertAndAnswerFile(TelegramRequest request, TelegramFile file, CancellationToken token, RequestMetrics metrics) throws RequestCancelledException {
+		var answered = false;
+
+		while (!answered) {
+			var flight = conversions.join(file.uniqueId());
+
+			if (flight.leader()) {
+				leadConversion(request, file, token, metrics, flight.result());
+				answered = true;
 			} else {
-				pathsToDelete.add(outputFile.toPath());
+				answered = awaitConversion(request, file, token, metrics, flight);
+			}
+		}
+	}
 
-				var answerWithFile = new SendDocument(request.getChatId(), outputFile)
-						.replyToMessageId(request.getMessageId())
-						.disableContentTypeDetection(true)
-						.caption(FILE_READY.getText())
-						.parseMode(MarkdownV2);
+	private void leadConversion(TelegramRequest request, TelegramFile file, CancellationToken token, RequestMetrics metrics, CompletableFuture<CachedConversion> result) {
+		try {
+			var cachedConversion = cache.get(file.uniqueId());
 
-				execute(answerWithFile);
+			if (cachedConversion != null) {
+				result.complete(cachedConversion);
+				answerCachedFile(request, file, cachedConversion, metrics);
+			} else {
+				result.complete(convertAndAnswer(request, file, token, metrics));
 			}
 		} catch (TelegramApiException | MediaException e) {
-			processFailure(request, e);
+			result.completeExceptionally(e);
+			processFailure(request, e, metrics);
 		} finally {
-			deleteTempFiles(pathsToDelete);
+			result.completeExceptionally(new CancellationException("The conversion of the file " + file.uniqueId() + " was abandoned"));
 		}
 	}
 
-	private File retrieveFile(String fileId) throws TelegramApiException, FileOperationException {
-		var file = execute(new GetFile(fileId)).file();
+	/**
+	 * Waits for the conversion of the file started by another request and answers reusing its result.
+	 *
+	 * @param request the request to answer
+	 * @param file the file sent by the user
+	 * @param token the token of the request, whose cancellation stops the waiting
+	 * @param metrics the metrics of the request
+	 * @param flight the conversion in progress
+	 * @return {@code false} if the conversion failed for reasons unrelated to the file, and it has to be attempted again
+	 * @throws RequestCancelledException if the request was cancelled while waiting
+	 */
+	private boolean awaitConversion(TelegramRequest request, TelegramFile file, CancellationToken token, RequestMetrics metrics, SingleFlight.Flight<CachedConversion> flight) throws RequestCancelledException {
+		LOGGER.atDebug().log("Waiting for the conversion of the file {} already in progress", file.uniqueId());
+
+		var result = flight.await();
+		CachedConversion cachedConversion;
+
+		try (var _ = token.onCancel(() -> result.cancel(false))) {
+			cachedConversion = result.join();
+		} catch (CancellationException _) {
+			token.throwIfCancelled();
+			return false;
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof MediaException mediaException && !(mediaException instanceof RequestCancelledException)) {
+				processFailure(request, mediaException, metrics);
+				return true;
+			}
+
+			return false;
+		}
+
+		if (cachedConversion == null) {
+			return false;
+		}
+
+		answerCachedFile(request, file, cachedConversion, metrics);
+		return true;
+	}
+
+	/**
+	 * Downloads the file, converts it and sends it back to the user.
+	 *
+	 * @param request the request to answer
+	 * @param file the file sent by the user
+	 * @param token the token of the request
+	 * @param metrics the metrics of the request
+	 * @return the result of the conversion, {@code null} if the document sent couldn't be referenced again
+	 * @throws TelegramApiException if an error occurred interacting with Telegram
+	 * @throws MediaException if the file couldn't be converted or the request was cancelled
+	 */
+	private CachedConversion convertAndAnswer(TelegramRequest request, TelegramFile file, CancellationToken token, RequestMetrics metrics) throws TelegramApiException, MediaException {
+		token.throwIfCancelled();
+		var start = System.nanoTime();
+		var telegramFile = execute(new GetFile(file.id())).file();
+		metrics.recordStage(Stage.GET_FILE, start);
+		var fileUrl = bot.getFullFilePath(telegramFile);
+
+		token.throwIfCancelled();
+		if (canBeProcessedInMemory(telegramFile)) {
+			return convertInMemory(request, file, fileUrl, telegramFile.fileSize(), token, metrics);
+		} else {
+			return convertOnDisk(request, file, fileUrl, token, metrics);
+		}
+	}
+
+	/**
+	 * Checks if the file is small enough to be downloaded, converted and uploaded without using temp files.
+	 *
+	 * @param file the file to check
+	 * @return {@code true} if the size of the file is known and does not exceed the configured threshold
+	 */
+	private boolean canBeProcessedInMemory(File file) {
+		var fileSize = file.fileSize();
+
+		return fileSize != null && fileSize <= inMemoryMaxFileSize;
+	}
+
+	private CachedConversion convertInMemory(TelegramRequest request, TelegramFile file, String fileUrl, long fileSize, CancellationToken token, RequestMetrics metrics) throws TelegramApiException, MediaException {
+		var start = System.nanoTime();
+		var originalContent = DownloadHelper.downloadContent(HTTP_CLIENT, fileUrl, fileSize, token);
+		metrics.recordStage(Stage.DOWNLOAD, start);
+		MetricsHelper.recordBytesIn(originalContent.length);
+
+		var convertedMedia = MediaHelper.convert(originalContent, token, metrics);
+
+		if (convertedMedia == null) {
+			return answerAlreadyValid(request, file, metrics);
+		}
+
+		var document = new SendDocument(request.getChatId(), convertedMedia.content()).fileName(convertedMedia.fileName());
+		var response = upload(request, document, convertedMedia.content().length, token, metrics);
+
+		return cacheSentDocument(file, response);
+	}
+
+	private CachedConversion convertOnDisk(TelegramRequest request, TelegramFile file, String fileUrl, CancellationToken token, RequestMetrics metrics) throws TelegramApiException, MediaException {
+		Set<Path> pathsToDelete = newHashSet(2);
 
 		try {
-			var fileContent = bot.getFileContent(file);
-			var downloadedFile = File.createTempFile("OriginalFile-", null);
-			Files.write(downloadedFile.toPath(), fileContent);
+			var start = System.nanoTime();
+			var originalFile = DownloadHelper.downloadFile(HTTP_CLIENT, fileUrl, token);
+			pathsToDelete.add(originalFile.toPath());
+			metrics.recordStage(Stage.DOWNLOAD, start);
+			MetricsHelper.recordBytesIn(originalFile.length());
 
-			return downloadedFile;
-		} catch (IOException e) {
-			throw new FileOperationException(e);
+			var outputFile = MediaHelper.convert(originalFile, token, metrics);
+
+			if (outputFile == null) {
+				return answerAlreadyValid(request, file, metrics);
+			}
+
+			pathsToDelete.add(outputFile.toPath());
+
+			var response = upload(request, new SendDocument(request.getChatId(), outputFile), outputFile.length(), token, metrics);
+
+			return cacheSentDocument(file, response);
+		} finally {
+			deleteTempFiles(pathsToDelete);
+		}
+	}
+
+	private CachedConversion answerAlreadyValid(TelegramRequest request, TelegramFile file, RequestMetrics metrics) {
+		cache.put(file.uniqueId(), CachedConversion.ALREADY_VALID);
+		answerText(FILE_ALREADY_VALID, request, metrics);
+
+		return CachedConversion.ALREADY_VALID;
+	}
+
+	private SendResponse upload(TelegramRequest request, SendDocument document, long size, CancellationToken token, RequestMetrics metrics) throws TelegramApiException, MediaException {
+		token.throwIfCancelled();
+		var start = System.nanoTime();
+		var response = execute(createDocumentAnswer(request, document));
+
+		metrics.recordStage(Stage.UPLOAD, start);
+		MetricsHelper.recordBytesOut(size);
+		metrics.recordOutcome(FILE_READY.name());
+
+		return response;
+	}
+
+	private static SendDocument createDocumentAnswer(TelegramRequest request, SendDocument document) {
+		return document.replyToMessageId(request.getMessageId())
+				.disableContentTypeDetection(true)
+				.caption(FILE_READY.getText())
+				.parseMode(MarkdownV2);
+	}
+
+	private CachedConversion cacheSentDocument(TelegramFile file, SendResponse response) {
+		var message = response.message();
+
+		if (message == null || message.document() == null) {
+			return null;
 		}
+
+		var cachedConversion = new CachedConversion(message.document().fileId());
+		cache.put(file.uniqueId(), cachedConversion);
+
+		return cachedConversion;
 	}
 
-	private void processFailure(TelegramRequest request, BaseException e) {
+	private void processFailure(TelegramRequest request, BaseException e, RequestMetrics metrics) {
 		if (e instanceof TelegramApiException telegramException) {
-			processTelegramFailure(request.getDescription(), telegramException, false);
+			processTelegramFailure(request, telegramException, false);
 		}
 
-		if (e instanceof CorruptedVideoException) {
+		if (e instanceof RequestCancelledException) {
+			processCancellation(request, e, metrics);
+		} else if (e instanceof CorruptedVideoException) {
 			LOGGER.atInfo().log("Unable to reply to the {}: the file is corrupted", request.getDescription());
-			answerText(CORRUPTED, request);
+			answerText(CORRUPTED, request, metrics);
+		} else if (e instanceof FileTooLargeException) {
+			LOGGER.atInfo().log("Unable to reply to the {}: the file is too large", request.getDescription());
+			answerText(FILE_TOO_LARGE, request, metrics);
 		} else {
 			LOGGER.atWarn().setCause(e).log("Unable to process the file {}", request.getFile().id());
-			answerText(ERROR, request);
+			answerText(ERROR, request, metrics);
 		}
 	}
 
-	private void processTelegramFailure(String requestDescription, TelegramApiException e, boolean logUnmatchedFailure) {
+	/**
+	 * Drops a request whose answer is no longer needed, without sending anything to the user.
+	 *
+	 * @param request the request cancelled
+	 * @param e the exception describing why the request was cancelled
+	 * @param metrics the metrics of the request
+	 */
+	private static void processCancellation(TelegramRequest request, BaseException e, RequestMetrics metrics) {
+		LOGGER.atInfo().log("Stopped processing the {}: {}", request.getDescription(), e.getMessage());
+		metrics.recordOutcome(CANCELLED);
+	}
+
+	private void processTelegramFailure(TelegramRequest request, TelegramApiException e, boolean logUnmatchedFailure) {
+		var requestDescription = request.getDescription();
 		var exceptionMessage = e.getMessage();
 
 		if (exceptionMessage.endsWith("Bad Request: message to be replied not found")) {
 			LOGGER.atInfo().log("Unable to reply to the {}: the message sent has been deleted", requestDescription);
 		} else if (exceptionMessage.endsWith("Forbidden: bot was blocked by the user")) {
 			LOGGER.atInfo().log("Unable to reply to the {}: the user blocked the bot", requestDescription);
+			cancelChat(request.getChatId(), "the user blocked the bot");
 		} else if (logUnmatchedFailure) {
 			LOGGER.atError().setCause(e).log("Unable to reply to the {}", requestDescription);
 		}
 	}
 
-	private void answerText(TelegramRequest request) {
+	private void answerText(TelegramRequest request, RequestMetrics metrics) {
 		var message = request.message();
 		if (message.text() == null) {
 			LOGGER.atInfo().log("An unhandled message type has been received: {}", message);
 		}
 
-		answerText(request.getAnswerMessage(), request);
+		answerText(request.getAnswerMessage(), request, metrics);
 	}
 
-	private void answerText(Answer answer, TelegramRequest request) {
+	private void answerText(Answer answer, TelegramRequest request, RequestMetrics metrics) {
+		metrics.recordOutcome(answer.name());
+
 		var previewOptions = new LinkPreviewOptions().isDisabled(answer.isDisableLinkPreview());
 
 		var answerWithText = new SendMessage(request.getChatId(), answer.getText())
@@ -202,7 +625,7 @@ public class Stickerify {
 		try {
 			execute(answerWithText);
 		} catch (TelegramApiException e) {
-			processTelegramFailure(request.getDescription(), e, true);
+			processTelegramFailure(request, e, true);
 		}
 	}
 
@@ -220,14 +643,165 @@ public class Stickerify {
 		for (var path : pathsToDelete) {
 			try {
 				Files.deleteIfExists(path);
+				MetricsHelper.recordTempFileDeleted(path);
 			} catch (IOException e) {
 				LOGGER.atError().setCause(e).log("An error occurred trying to delete temp file {}", path);
 			}
 		}
 	}
 
+	/**
+	 * Shuts the bot down, waiting for the requests being processed to be answered for at most the time
+	 * configured with {@code SHUTDOWN_TIMEOUT_SECONDS}.
+	 *
+	 * @see #shutdown(Duration)
+	 */
+	@Override
+	public void close() {
+		shutdown(getShutdownTimeout());
+	}
+
+	/**
+	 * Shuts the bot down in phases:
+	 * <ol>
+	 *     <li>stops receiving updates, either from polling or from the webhook
+	 *     <li>stops admitting new requests
+	 *     <li>waits for the admitted requests to be answered until the timeout elapses
+	 *     <li>cancels the requests still queued, terminates the running processes and interrupts the workers
+	 * </ol>
+	 *
+	 * @param timeout the maximum time to wait for the admitted requests to be answered
+	 */
+	public void shutdown(Duration timeout) {
+		LOGGER.atInfo().log("Shutting down the bot");
+
+		if (webhookServer == null) {
+			bot.removeGetUpdatesListener();
+		} else {
+			webhookServer.close();
+		}
+
+		var pendingRequests = scheduler.shutdown();
+		var terminated = false;
+
+		try {
+			terminated = scheduler.awaitTermination(timeout);
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+		}
+
+		var droppedRequests = 0;
+
+		if (!terminated) {
+			var cancelledRequests = scheduler.cancelQueued();
+			var interruptedRequests = scheduler.getAdmittedRequests();
+			var destroyedProcesses = ProcessHelper.destroyAll();
+
+			if (executor instanceof ExecutorService executorService) {
+				executorService.shutdownNow();
+			}
+
+			droppedRequests = cancelledRequests + interruptedRequests;
+			LOGGER.atWarn().log("Shutdown timeout elapsed: {} queued requests cancelled, {} requests interrupted, {} processes terminated",
+					cancelledRequests, interruptedRequests, destroyedProcesses);
+		}
+
+		bot.shutdown();
+		cache.flush();
+
+		if (metricsServer != null) {
+			metricsServer.close();
+		}
+
+		LOGGER.atInfo().log("Shutdown completed: {} requests drained, {} requests dropped", pendingRequests - droppedRequests, droppedRequests);
+	}
+
 	private static int getMaxConcurrentThreads() {
 		var value = System.getenv("CONCURRENT_THREADS");
 		return value == null ? 5 : Integer.parseInt(value);
 	}
+
+	private static Map<WorkClass, Integer> getReservedLaneThreads() {
+		return Map.of(
+				WorkClass.TEXT, getReservedThreads("TEXT_LANE_THREADS"),
+				WorkClass.IMAGE, getReservedThreads("IMAGE_LANE_THREADS"),
+				WorkClass.VIDEO, getReservedThreads("VIDEO_LANE_THREADS"));
+	}
+
+	private static int getReservedThreads(String variable) {
+		var value = System.getenv(variable);
+		return value == null ? 1 : Integer.parseInt(value);
+	}
+
+	private static Duration getRequestDeadline() {
+		var value = System.getenv("REQUEST_DEADLINE_SECONDS");
+		return Duration.ofSeconds(value == null ? 300 : Long.parseLong(value));
+	}
+
+	private static Integer getMetricsPort() {
+		var value = System.getenv("METRICS_PORT");
+		return value == null ? null : Integer.valueOf(value);
+	}
+
+	private static Duration getShutdownTimeout() {
+		var value = System.getenv("SHUTDOWN_TIMEOUT_SECONDS");
+		return Duration.ofSeconds(value == null ? 9 : Long.parseLong(value));
+	}
+
+	private static WebhookSettings getWebhookSettings() {
+		var port = System.getenv("WEBHOOK_PORT");
+		if (port == null) {
+			return null;
+		}
+
+		var secretToken = System.getenv("WEBHOOK_SECRET");
+		if (secretToken == null || secretToken.isBlank()) {
+			throw new IllegalStateException("WEBHOOK_SECRET must be set to receive updates through a webhook");
+		}
+
+		var path = System.getenv("WEBHOOK_PATH");
+
+		return new WebhookSettings(Integer.parseInt(port), path == null ? "/webhook" : path, secretToken, System.getenv("WEBHOOK_URL"));
+	}
+
+	private static int getMaxQueuedRequests() {
+		var value = System.getenv("MAX_QUEUED_REQUESTS");
+		return value == null ? 1_000 : Integer.parseInt(value);
+	}
+
+	private static long getMaxQueuedWork() {
+		var value = System.getenv("MAX_QUEUED_WORK");
+		return value == null ? 10_000L : Long.parseLong(value);
+	}
+
+	private static long getMaxQueuedWorkPerUser() {
+		var value = System.getenv("MAX_QUEUED_WORK_PER_USER");
+		return value == null ? 1_000L : Long.parseLong(value);
+	}
+
+	private static UserThrottle getUserThrottle() {
+		var burstSize = System.getenv("USER_BURST_SIZE");
+		var requestsPerMinute = System.getenv("USER_REQUESTS_PER_MINUTE");
+		var maxUsers = System.getenv("MAX_TRACKED_USERS");
+
+		return new UserThrottle(
+				burstSize == null ? 20 : Integer.parseInt(burstSize),
+				requestsPerMinute == null ? 60 : Double.parseDouble(requestsPerMinute),
+				maxUsers == null ? 10_000 : Integer.parseInt(maxUsers));
+	}
+
+	private static int getCacheSize() {
+		var value = System.getenv("CACHE_SIZE");
+		return value == null ? 10_000 : Integer.parseInt(value);
+	}
+
+	private static long getInMemoryMaxFileSize() {
+		var value = System.getenv("IN_MEMORY_MAX_FILE_SIZE");
+		return value == null ? 512_000L : Long.parseLong(value);
+	}
+
+	private static Path getCacheIndexPath() {
+		var value = System.getenv("CACHE_INDEX_PATH");
+		return value == null || value.isBlank() ? null : Path.of(value);
+	}
 }
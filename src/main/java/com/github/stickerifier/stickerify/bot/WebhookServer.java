@@ -0,0 +1,108 @@
+package com.github.stickerifier.stickerify.bot;
+
+import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_BAD_REQUEST;
+import static java.net.HttpURLConnection.HTTP_ENTITY_TOO_LARGE;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.net.HttpURLConnection.HTTP_UNAUTHORIZED;
+import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.Executors.newVirtualThreadPerTaskExecutor;
+
+import com.pengrad.telegrambot.model.Update;
+import com.pengrad.telegrambot.utility.BotUtils;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Predicate;
+
+/**
+ * Embedded HTTP server receiving the updates Telegram posts to the webhook,
+ * handling every request in its own virtual thread.
+ * <p>
+ * Only {@code POST} requests carrying the configured secret token are accepted.
+ * Updates the bot has no capacity for are answered with {@code 503}, so that Telegram delivers them again later.
+ */
+final class WebhookServer implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebhookServer.class);
+	private static final String SECRET_TOKEN_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+	private static final int MAX_UPDATE_SIZE = 1024 * 1024;
+
+	private final HttpServer server;
+	private final ExecutorService executor = newVirtualThreadPerTaskExecutor();
+	private final byte[] secretToken;
+	private final Predicate<Update> updateHandler;
+
+	/**
+	 * Starts the server.
+	 *
+	 * @param settings the configuration of the webhook
+	 * @param updateHandler the function scheduling an update, returning {@code false} if it was not admitted
+	 * @throws IOException if the server can't be bound to the port
+	 */
+	WebhookServer(WebhookSettings settings, Predicate<Update> updateHandler) throws IOException {
+		this.secretToken = settings.secretToken().getBytes(UTF_8);
+		this.updateHandler = updateHandler;
+
+		server = HttpServer.create(new InetSocketAddress(settings.port()), 0);
+		server.setExecutor(executor);
+		server.createContext(settings.path(), this::handle);
+		server.start();
+
+		LOGGER.atInfo().log("Listening for updates on port {}", getPort());
+	}
+
+	int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			exchange.sendResponseHeaders(process(exchange), -1);
+		}
+	}
+
+	private int process(HttpExchange exchange) throws IOException {
+		if (!"POST".equals(exchange.getRequestMethod())) {
+			return HTTP_BAD_METHOD;
+		}
+
+		var token = exchange.getRequestHeaders().getFirst(SECRET_TOKEN_HEADER);
+		if (token == null || !MessageDigest.isEqual(secretToken, token.getBytes(UTF_8))) {
+			LOGGER.atWarn().log("Refused update with invalid secret token from {}", exchange.getRemoteAddress());
+			return HTTP_UNAUTHORIZED;
+		}
+
+		var body = exchange.getRequestBody().readNBytes(MAX_UPDATE_SIZE + 1);
+		if (body.length > MAX_UPDATE_SIZE) {
+			return HTTP_ENTITY_TOO_LARGE;
+		}
+
+		Update update;
+		try {
+			update = BotUtils.parseUpdate(new String(body, UTF_8));
+		} catch (RuntimeException e) {
+			LOGGER.atWarn().log("Unable to parse the update received: {}", e.getMessage());
+			return HTTP_BAD_REQUEST;
+		}
+
+		if (update == null) {
+			return HTTP_BAD_REQUEST;
+		}
+
+		return updateHandler.test(update) ? HTTP_OK : HTTP_UNAVAILABLE;
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.close();
+	}
+}
@@ -0,0 +1,11 @@
+package com.github.stickerifier.stickerify.bot;
+
+/**
+ * Data class representing the configuration of the webhook used to receive updates.
+ *
+ * @param port the port the embedded server listens on
+ * @param path the path the updates are posted to
+ * @param secretToken the token Telegram sends in every request, to verify the updates are genuine
+ * @param publicUrl the URL to register on Telegram, if the webhook has to be set by the bot
+ */
+record WebhookSettings(int port, String path, String secretToken, String publicUrl) {}
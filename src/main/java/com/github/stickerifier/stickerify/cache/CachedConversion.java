@@ -0,0 +1,14 @@
+package com.github.stickerifier.stickerify.cache;
+
+/**
+ * Data class representing the outcome of a previous conversion.
+ *
+ * @param fileId the identifier of the document sent back to the user, {@code null} if the media was already valid
+ */
+public record CachedConversion(String fileId) {
+	public static final CachedConversion ALREADY_VALID = new CachedConversion(null);
+
+	public boolean isAlreadyValid() {
+		return fileId == null;
+	}
+}
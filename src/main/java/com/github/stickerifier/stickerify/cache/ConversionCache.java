@@ -0,0 +1,274 @@
+package com.github.stickerifier.stickerify.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cache storing the result of the conversions, keyed by the unique identifier of the file sent by the user.
+ * <p>
+ * The most recently used entries are kept in memory, up to {@code capacity} elements.
+ * If an index file is specified, every new entry is appended to it, and its content is loaded back on startup;
+ * removing an entry appends a line made of the unique identifier alone, which discards the entry when the file is loaded.
+ * The lines are buffered in memory and written by a background thread, so that no file operation happens holding
+ * the lock every lookup needs: the same thread compacts the file once it grows beyond twice the capacity of the cache,
+ * while the file is also compacted when it's loaded.
+ */
+public final class ConversionCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConversionCache.class);
+	private static final String SEPARATOR = "\t";
+
+	private final int capacity;
+	private final Path indexFile;
+	private final Map<String, CachedConversion> entries;
+	private final Executor indexWriter;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ReentrantLock indexLock = new ReentrantLock();
+	private final StringBuilder pendingLines = new StringBuilder();
+	private int pendingLineCount;
+	private boolean flushScheduled;
+	private int indexedEntries;
+
+	/**
+	 * Creates a new cache.
+	 *
+	 * @param capacity the maximum number of entries kept in memory
+	 * @param indexFile the file where entries are persisted, {@code null} to keep them only in memory
+	 */
+	public ConversionCache(int capacity, Path indexFile) {
+		this(capacity, indexFile, flush -> Thread.ofVirtual().name("Cache-index-writer").start(flush));
+	}
+
+	/**
+	 * Creates a new cache writing its index file with an arbitrary executor.
+	 *
+	 * @see #ConversionCache(int, Path)
+	 */
+	ConversionCache(int capacity, Path indexFile, Executor indexWriter) {
+		this.capacity = capacity;
+		this.indexFile = indexFile;
+		this.indexWriter = indexWriter;
+		this.entries = new LinkedHashMap<>(16, 0.75F, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, CachedConversion> eldest) {
+				return size() > ConversionCache.this.capacity;
+			}
+		};
+
+		loadIndex();
+	}
+
+	/**
+	 * Retrieves the result of a previous conversion of the file.
+	 *
+	 * @param uniqueId the unique identifier of the file
+	 * @return the cached conversion, {@code null} if the file was never converted before
+	 */
+	public CachedConversion get(String uniqueId) {
+		if (uniqueId == null) {
+			return null;
+		}
+
+		lock.lock();
+		try {
+			return entries.get(uniqueId);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stores the result of the conversion of the file.
+	 *
+	 * @param uniqueId the unique identifier of the file
+	 * @param conversion the result of the conversion
+	 */
+	public void put(String uniqueId, CachedConversion conversion) {
+		if (uniqueId == null || capacity <= 0) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			entries.put(uniqueId, conversion);
+			appendToIndex(uniqueId, conversion);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the result of the conversion of the file, if present.
+	 *
+	 * @param uniqueId the unique identifier of the file
+	 */
+	public void remove(String uniqueId) {
+		if (uniqueId == null) {
+			return;
+		}
+
+		lock.lock();
+		try {
+			if (entries.remove(uniqueId) != null) {
+				appendToIndex(uniqueId + "\n");
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return entries.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void loadIndex() {
+		if (indexFile == null || !Files.exists(indexFile)) {
+			return;
+		}
+
+		lock.lock();
+		try (var lines = Files.lines(indexFile, UTF_8)) {
+			lines.forEach(this::parseEntry);
+			writeIndex();
+
+			LOGGER.atInfo().log("Loaded {} cached conversions from {}", entries.size(), indexFile);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.atError().setCause(e).log("Unable to load the cache index from {}", indexFile);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void parseEntry(String line) {
+		var separatorIndex = line.indexOf(SEPARATOR);
+
+		if (separatorIndex > 0) {
+			var uniqueId = line.substring(0, separatorIndex);
+			var fileId = line.substring(separatorIndex + 1);
+			entries.put(uniqueId, fileId.isEmpty() ? CachedConversion.ALREADY_VALID : new CachedConversion(fileId));
+		} else if (!line.isEmpty()) {
+			entries.remove(line);
+		}
+	}
+
+	private void appendToIndex(String uniqueId, CachedConversion conversion) {
+		appendToIndex(toLine(uniqueId, conversion));
+	}
+
+	/**
+	 * Buffers a line to be appended to the index, scheduling a background flush if none is pending.
+	 * Must be called holding the lock.
+	 *
+	 * @param line the line to append
+	 */
+	private void appendToIndex(String line) {
+		if (indexFile == null) {
+			return;
+		}
+
+		pendingLines.append(line);
+		pendingLineCount++;
+
+		if (!flushScheduled) {
+			flushScheduled = true;
+			indexWriter.execute(this::flush);
+		}
+	}
+
+	/**
+	 * Writes the buffered lines to the index, or rewrites it with the entries in memory if it grew too much.
+	 * The buffer is emptied holding the lock, while the file is written after releasing it:
+	 * since the entries in memory already reflect every buffered line, a compaction can discard them.
+	 */
+	public void flush() {
+		if (indexFile == null) {
+			return;
+		}
+
+		indexLock.lock();
+		try {
+			String lines;
+			int lineCount;
+			StringBuilder content = null;
+			int snapshotEntries = 0;
+
+			lock.lock();
+			try {
+				lines = pendingLines.toString();
+				lineCount = pendingLineCount;
+				pendingLines.setLength(0);
+				pendingLineCount = 0;
+				flushScheduled = false;
+
+				if (indexedEntries + lineCount > 2 * capacity) {
+					content = snapshotIndex();
+					snapshotEntries = entries.size();
+				}
+			} finally {
+				lock.unlock();
+			}
+
+			if (content != null) {
+				replaceIndex(content, snapshotEntries);
+			} else if (lineCount > 0) {
+				Files.writeString(indexFile, lines, UTF_8, CREATE, APPEND);
+				indexedEntries += lineCount;
+			}
+		} catch (IOException e) {
+			LOGGER.atWarn().setCause(e).log("Unable to update the cache index {}", indexFile);
+		} finally {
+			indexLock.unlock();
+		}
+	}
+
+	private void writeIndex() {
+		if (indexFile == null) {
+			return;
+		}
+
+		try {
+			replaceIndex(snapshotIndex(), entries.size());
+		} catch (IOException e) {
+			LOGGER.atWarn().setCause(e).log("Unable to compact the cache index {}", indexFile);
+		}
+	}
+
+	private void replaceIndex(CharSequence content, int contentEntries) throws IOException {
+		var tempFile = Files.createTempFile(indexFile.toAbsolutePath().getParent(), "Stickerify-", ".index");
+		Files.writeString(tempFile, content, UTF_8);
+		Files.move(tempFile, indexFile, REPLACE_EXISTING, ATOMIC_MOVE);
+		indexedEntries = contentEntries;
+	}
+
+	private StringBuilder snapshotIndex() {
+		var content = new StringBuilder();
+		entries.forEach((uniqueId, conversion) -> content.append(toLine(uniqueId, conversion)));
+
+		return content;
+	}
+
+	private static String toLine(String uniqueId, CachedConversion conversion) {
+		var fileId = conversion.isAlreadyValid() ? "" : conversion.fileId();
+
+		return uniqueId + SEPARATOR + fileId + "\n";
+	}
+}
@@ -0,0 +1,69 @@
+package com.github.stickerifier.stickerify.cache;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deduplicates the work done concurrently for the same key: the first caller runs the work,
+ * while the ones arriving before it completes wait for its result instead of repeating it.
+ * <p>
+ * Once the work completes, either successfully or not, the key is forgotten: later callers run the work again,
+ * unless they find its result elsewhere, such as in the {@link ConversionCache}.
+ *
+ * @param <K> the type of the keys identifying the work
+ * @param <V> the type of the result of the work
+ */
+public final class SingleFlight<K, V> {
+
+	private final Map<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+	/**
+	 * Joins the work for passed-in key, starting it if no other caller is running it.
+	 * The leader must always complete the result of the flight, otherwise the key is never released.
+	 *
+	 * @param key the key identifying the work
+	 * @return the flight, telling whether the caller has to run the work or to wait for it
+	 */
+	public Flight<V> join(K key) {
+		var result = new CompletableFuture<V>();
+		var existingResult = flights.putIfAbsent(key, result);
+
+		if (existingResult != null) {
+			return new Flight<>(existingResult, false);
+		}
+
+		result.whenComplete((_, _) -> flights.remove(key, result));
+		return new Flight<>(result, true);
+	}
+
+	/**
+	 * Retrieves the number of keys whose work is in progress.
+	 *
+	 * @return the number of flights
+	 */
+	public int size() {
+		return flights.size();
+	}
+
+	/**
+	 * Data class representing the participation of a caller in the work done for a key.
+	 *
+	 * @param result the future completing with the result of the work
+	 * @param leader {@code true} if the caller has to run the work and complete {@code result},
+	 * {@code false} if another caller is already running it
+	 * @param <V> the type of the result of the work
+	 */
+	public record Flight<V>(CompletableFuture<V> result, boolean leader) {
+
+		/**
+		 * Creates a view of the result which can be cancelled by a waiter giving up,
+		 * without affecting the work shared with the other callers.
+		 *
+		 * @return the future completing with the result of the work
+		 */
+		public CompletableFuture<V> await() {
+			return result.copy();
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package com.github.stickerifier.stickerify.cancellation;
+
+import com.github.stickerifier.stickerify.exception.RequestCancelledException;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Token signalling that the work done for a request is no longer needed, either because it was cancelled
+ * or because its deadline expired.
+ * <p>
+ * The token is passed along every stage of the request: stages check it before starting,
+ * while long-running operations register a callback to be aborted as soon as the token is cancelled,
+ * such as external processes being terminated or downloads being closed.
+ * Once the request completes, the token has to be closed so that its deadline stops being tracked.
+ */
+public final class CancellationToken implements AutoCloseable {
+
+	private static final ScheduledThreadPoolExecutor DEADLINES = createDeadlinesExecutor();
+
+	private final AtomicReference<String> reason = new AtomicReference<>();
+	private final Set<Registration> registrations = ConcurrentHashMap.newKeySet();
+	private final ScheduledFuture<?> deadline;
+
+	private CancellationToken(Duration timeout) {
+		deadline = timeout == null
+				? null
+				: DEADLINES.schedule(() -> cancel("its deadline of " + timeout.toSeconds() + " seconds expired"), timeout.toNanos(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Creates the executor tracking the deadlines, removing them from its queue as soon as they are cancelled:
+	 * otherwise, the deadline of every completed request would keep its token referenced until expiring.
+	 *
+	 * @return the executor
+	 */
+	private static ScheduledThreadPoolExecutor createDeadlinesExecutor() {
+		var executor = new ScheduledThreadPoolExecutor(1, Thread.ofPlatform().name("Deadlines").daemon().factory());
+		executor.setRemoveOnCancelPolicy(true);
+
+		return executor;
+	}
+
+	/**
+	 * Creates a token which is cancelled only explicitly.
+	 *
+	 * @return the token
+	 */
+	public static CancellationToken create() {
+		return new CancellationToken(null);
+	}
+
+	/**
+	 * Creates a token which is cancelled once passed-in timeout elapses.
+	 *
+	 * @param timeout the time after which the work is no longer needed
+	 * @return the token
+	 */
+	public static CancellationToken withDeadline(Duration timeout) {
+		return new CancellationToken(timeout);
+	}
+
+	/**
+	 * Cancels the token, running the callbacks registered. Only the first cancellation has effect.
+	 *
+	 * @param reason why the work is no longer needed
+	 */
+	public void cancel(String reason) {
+		if (this.reason.compareAndSet(null, reason)) {
+			if (deadline != null) {
+				deadline.cancel(false);
+			}
+
+			registrations.forEach(Registration::run);
+		}
+	}
+
+	/**
+	 * Retrieves why the token was cancelled.
+	 *
+	 * @return the reason of the cancellation, {@code null} if the token wasn't cancelled
+	 */
+	public String getReason() {
+		return reason.get();
+	}
+
+	public boolean isCancelled() {
+		return reason.get() != null;
+	}
+
+	/**
+	 * Makes sure the work is still needed before starting a new stage.
+	 *
+	 * @throws RequestCancelledException if the token has been cancelled
+	 */
+	public void throwIfCancelled() throws RequestCancelledException {
+		var cancellationReason = reason.get();
+
+		if (cancellationReason != null) {
+			throw new RequestCancelledException("The request was cancelled because {}", cancellationReason);
+		}
+	}
+
+	/**
+	 * Registers a callback to run when the token is cancelled, or straight away if it already has been.
+	 * The callback runs at most once, and it doesn't run at all if the registration is closed first.
+	 *
+	 * @param callback the action aborting the work
+	 * @return the registration, to be closed once the work completed
+	 */
+	public Registration onCancel(Runnable callback) {
+		var registration = new Registration(callback);
+		registrations.add(registration);
+
+		if (isCancelled()) {
+			registration.run();
+		}
+
+		return registration;
+	}
+
+	/**
+	 * Stops tracking the deadline of the token, to be called once the request completed.
+	 */
+	@Override
+	public void close() {
+		if (deadline != null) {
+			deadline.cancel(false);
+		}
+
+		registrations.clear();
+	}
+
+	static int trackedDeadlines() {
+		return DEADLINES.getQueue().size();
+	}
+
+	/**
+	 * Callback registered on a token, removed from it once closed.
+	 */
+	public final class Registration implements AutoCloseable {
+
+		private final Runnable callback;
+		private final AtomicBoolean done = new AtomicBoolean();
+
+		private Registration(Runnable callback) {
+			this.callback = callback;
+		}
+
+		private void run() {
+			if (done.compareAndSet(false, true)) {
+				callback.run();
+			}
+		}
+
+		@Override
+		public void close() {
+			done.set(true);
+			registrations.remove(this);
+		}
+	}
+}
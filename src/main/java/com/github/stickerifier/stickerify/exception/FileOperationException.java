@@ -8,4 +8,11 @@ public class FileOperationException extends MediaException {
 	public FileOperationException(String message, Throwable cause) {
 		super(message, cause);
 	}
+
+	/**
+	 * @see BaseException#BaseException(String, Object...)
+	 */
+	public FileOperationException(String message, Object... parameters) {
+		super(message, parameters);
+	}
 }
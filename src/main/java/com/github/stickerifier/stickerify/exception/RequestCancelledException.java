@@ -0,0 +1,10 @@
+package com.github.stickerifier.stickerify.exception;
+
+public class RequestCancelledException extends MediaException {
+	/**
+	 * @see BaseException#BaseException(String, Object...)
+	 */
+	public RequestCancelledException(String message, Object... parameters) {
+		super(message, parameters);
+	}
+}
@@ -2,10 +2,9 @@ package com.github.stickerifier.stickerify.logger;
 
 import static ch.qos.logback.core.pattern.color.ANSIConstants.RED_FG;
 import static ch.qos.logback.core.pattern.color.ANSIConstants.RESET;
+import static com.github.stickerifier.stickerify.logger.HighlightHelper.START_GREEN;
 import static com.github.stickerifier.stickerify.logger.HighlightHelper.changeColorTo;
-import static com.github.stickerifier.stickerify.logger.HighlightHelper.greenHighlight;
-import static com.github.stickerifier.stickerify.logger.HighlightHelper.replaceFirst;
-import static com.github.stickerifier.stickerify.logger.HighlightHelper.retrieveMimeType;
+import static com.github.stickerifier.stickerify.logger.HighlightHelper.highlightMimeType;
 
 import ch.qos.logback.classic.pattern.ThrowableProxyConverter;
 import ch.qos.logback.classic.spi.ILoggingEvent;
@@ -13,28 +12,45 @@ import ch.qos.logback.core.pattern.Converter;
 
 /**
  * Custom converter class to be used by Logback in order to highlight important substrings in exception logs.
+ * The stack trace rendered by {@link ThrowableProxyConverter} is copied once into a buffer sized to also fit
+ * the color codes, and highlighted in place.
  *
  * @see Converter
  */
 public class ExceptionHighlighter extends ThrowableProxyConverter {
 
 	static final String CONTINUE_RED = changeColorTo(RESET + RED_FG);
+	private static final int HIGHLIGHT_LENGTH = START_GREEN.length() + CONTINUE_RED.length();
 
 	@Override
 	public String convert(ILoggingEvent event) {
 		var fullMessage = super.convert(event);
+
+		if (!hasMessage(event)) {
+			return fullMessage;
+		}
+
+		var buffer = new StringBuilder(fullMessage.length() + HIGHLIGHT_LENGTH).append(fullMessage);
+		highlightExceptionMessage(buffer, event);
+
+		return buffer.toString();
+	}
+
+	private static boolean hasMessage(ILoggingEvent event) {
 		var throwable = event.getThrowableProxy();
 
-		if (throwable != null && throwable.getMessage() != null) {
-			var exceptionMessage = throwable.getMessage();
-			var mimeType = retrieveMimeType(exceptionMessage);
+		return throwable != null && throwable.getMessage() != null;
+	}
+
+	/**
+	 * Highlights the MIME type contained in the message of the exception, where it first appears in the stack trace.
+	 */
+	private static void highlightExceptionMessage(StringBuilder buffer, ILoggingEvent event) {
+		var exceptionMessage = event.getThrowableProxy().getMessage();
+		int messageStart = buffer.indexOf(exceptionMessage);
 
-			if (mimeType != null) {
-				var highlightedMessage = replaceFirst(exceptionMessage, mimeType, greenHighlight(mimeType, CONTINUE_RED));
-				return replaceFirst(fullMessage, exceptionMessage, highlightedMessage);
-			}
+		if (messageStart != -1) {
+			highlightMimeType(buffer, messageStart, messageStart + exceptionMessage.length(), CONTINUE_RED);
 		}
-
-		return fullMessage;
 	}
 }
@@ -5,36 +5,123 @@ import static ch.qos.logback.core.pattern.color.ANSIConstants.ESC_END;
 import static ch.qos.logback.core.pattern.color.ANSIConstants.ESC_START;
 import static ch.qos.logback.core.pattern.color.ANSIConstants.GREEN_FG;
 
-import java.util.regex.Pattern;
-
 public final class HighlightHelper {
 
 	static final String START_GREEN = changeColorTo(BOLD + GREEN_FG);
-	private static final Pattern MIME_TYPE_PATTERN = Pattern.compile(" (\\w+/[-+.\\w]+) ");
 
 	static String changeColorTo(final String color) {
 		return ESC_START + color + ESC_END;
 	}
 
 	/**
-	 * Enriches the {@code message} string with ANSI color codes to highlight it in green.
-	 * Then, the string continues with the color specified by {@code previousColor}.
+	 * Highlights in green the first MIME type found in the portion of {@code buffer} between {@code from} and {@code to},
+	 * editing the buffer in place. Then, the text continues with the color specified by {@code previousColor}.
+	 * <p>
+	 * A MIME type is a word followed by a slash and by a sequence of word characters, dots, dashes and pluses,
+	 * surrounded by spaces: if the same text appears earlier without the surrounding spaces, that occurrence is highlighted.
 	 *
-	 * @param message the message to be highlighted
+	 * @param buffer the buffer containing the text
+	 * @param from the index where the text starts
+	 * @param to the index where the text ends, exclusive
 	 * @param previousColor the color to use after the highlighted text
-	 * @return the highlighted text
 	 */
-	static String greenHighlight(final String message, String previousColor) {
-		return START_GREEN + message + previousColor;
+	static void highlightMimeType(StringBuilder buffer, int from, int to, String previousColor) {
+		int mimeTypeStart = findMimeType(buffer, from, to);
+
+		if (mimeTypeStart != -1) {
+			int length = findMimeTypeEnd(buffer, mimeTypeStart, to) - mimeTypeStart;
+			int occurrence = findFirstOccurrence(buffer, from, mimeTypeStart, length);
+
+			buffer.insert(occurrence + length, previousColor);
+			buffer.insert(occurrence, START_GREEN);
+		}
+	}
+
+	/**
+	 * Scans the text once, looking for a MIME type surrounded by spaces.
+	 * Whenever a candidate turns out not to be a MIME type, the scan resumes from the first character it didn't match,
+	 * since none of the characters before it can be a space.
+	 *
+	 * @return the index where the MIME type starts, or {@code -1} if the text doesn't contain one
+	 */
+	private static int findMimeType(CharSequence text, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (text.charAt(i) != ' ') {
+				continue;
+			}
+
+			int typeEnd = skipWordCharacters(text, i + 1, to, false);
+			if (typeEnd == i + 1 || typeEnd == to || text.charAt(typeEnd) != '/') {
+				i = Math.max(i, typeEnd - 1);
+				continue;
+			}
+
+			int subtypeEnd = skipWordCharacters(text, typeEnd + 1, to, true);
+			if (subtypeEnd == typeEnd + 1 || subtypeEnd == to || text.charAt(subtypeEnd) != ' ') {
+				i = subtypeEnd - 1;
+				continue;
+			}
+
+			return i + 1;
+		}
+
+		return -1;
+	}
+
+	private static int findMimeTypeEnd(CharSequence text, int start, int to) {
+		int end = start;
+
+		while (end < to && (isWordCharacter(text.charAt(end), true) || text.charAt(end) == '/')) {
+			end++;
+		}
+
+		return end;
+	}
+
+	private static int skipWordCharacters(CharSequence text, int start, int to, boolean allowSymbols) {
+		int end = start;
+
+		while (end < to && isWordCharacter(text.charAt(end), allowSymbols)) {
+			end++;
+		}
+
+		return end;
+	}
+
+	private static boolean isWordCharacter(char c, boolean allowSymbols) {
+		return (c >= 'a' && c <= 'z')
+				|| (c >= 'A' && c <= 'Z')
+				|| (c >= '0' && c <= '9')
+				|| c == '_'
+				|| (allowSymbols && (c == '-' || c == '+' || c == '.'));
+	}
+
+	/**
+	 * Finds the first occurrence, starting from {@code from}, of the text of length {@code length} found at {@code target}.
+	 *
+	 * @return the index of the first occurrence, {@code target} itself if there are none before it
+	 */
+	private static int findFirstOccurrence(CharSequence text, int from, int target, int length) {
+		for (int i = from; i < target; i++) {
+			if (regionMatches(text, i, target, length)) {
+				return i;
+			}
+		}
+
+		return target;
 	}
 
-	static String retrieveMimeType(final String message) {
-		var matcher = MIME_TYPE_PATTERN.matcher(message);
+	private static boolean regionMatches(CharSequence text, int first, int second, int length) {
+		for (int i = 0; i < length; i++) {
+			if (text.charAt(first + i) != text.charAt(second + i)) {
+				return false;
+			}
+		}
 
-		return matcher.find() ? matcher.group(1) : null;
+		return true;
 	}
 
-	static String replaceFirst(String message, String textToReplace, String replacement) {
-		return message.replaceFirst(Pattern.quote(textToReplace), replacement);
+	private HighlightHelper() {
+		throw new UnsupportedOperationException();
 	}
 }
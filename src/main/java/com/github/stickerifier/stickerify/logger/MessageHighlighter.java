@@ -4,10 +4,9 @@ import static ch.qos.logback.core.pattern.color.ANSIConstants.BOLD;
 import static ch.qos.logback.core.pattern.color.ANSIConstants.DEFAULT_FG;
 import static ch.qos.logback.core.pattern.color.ANSIConstants.RESET;
 import static ch.qos.logback.core.pattern.color.ANSIConstants.YELLOW_FG;
+import static com.github.stickerifier.stickerify.logger.HighlightHelper.START_GREEN;
 import static com.github.stickerifier.stickerify.logger.HighlightHelper.changeColorTo;
-import static com.github.stickerifier.stickerify.logger.HighlightHelper.greenHighlight;
-import static com.github.stickerifier.stickerify.logger.HighlightHelper.replaceFirst;
-import static com.github.stickerifier.stickerify.logger.HighlightHelper.retrieveMimeType;
+import static com.github.stickerifier.stickerify.logger.HighlightHelper.highlightMimeType;
 import static com.github.stickerifier.stickerify.telegram.model.TelegramRequest.NEW_USER;
 
 import ch.qos.logback.classic.pattern.MessageConverter;
@@ -16,6 +15,7 @@ import ch.qos.logback.core.pattern.Converter;
 
 /**
  * Custom converter class to be used by Logback in order to highlight important substrings.
+ * The message is copied once into a buffer sized to also fit the color codes, and highlighted in place.
  *
  * @see Converter
  */
@@ -24,23 +24,27 @@ public class MessageHighlighter extends MessageConverter {
 	private static final String START_YELLOW = changeColorTo(BOLD + YELLOW_FG);
 	static final String CONTINUE_WHITE = changeColorTo(RESET + DEFAULT_FG);
 	static final String HIGHLIGHTED_NEW_USER = " " + START_YELLOW + NEW_USER.substring(1) + CONTINUE_WHITE;
+	private static final int MAX_HIGHLIGHT_LENGTH = Math.max(
+			HIGHLIGHTED_NEW_USER.length() - NEW_USER.length(),
+			START_GREEN.length() + CONTINUE_WHITE.length());
 
 	@Override
 	public String convert(ILoggingEvent event) {
 		var message = event.getFormattedMessage();
 
-		if (message != null) {
-			if (message.contains(NEW_USER)) {
-				return replaceFirst(message, NEW_USER, HIGHLIGHTED_NEW_USER);
-			}
+		if (message == null) {
+			return null;
+		}
+
+		var buffer = new StringBuilder(message.length() + MAX_HIGHLIGHT_LENGTH).append(message);
 
-			var mimeType = retrieveMimeType(message);
-			if (mimeType != null) {
-				var highlightedMimeType = greenHighlight(mimeType, CONTINUE_WHITE);
-				return replaceFirst(message, mimeType, highlightedMimeType);
-			}
+		int newUser = message.indexOf(NEW_USER);
+		if (newUser != -1) {
+			buffer.replace(newUser, newUser + NEW_USER.length(), HIGHLIGHTED_NEW_USER);
+		} else {
+			highlightMimeType(buffer, 0, buffer.length(), CONTINUE_WHITE);
 		}
 
-		return message;
+		return buffer.toString();
 	}
 }
@@ -0,0 +1,32 @@
+package com.github.stickerifier.stickerify.media;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event spanning the conversion of a media.
+ */
+@Name("com.github.stickerifier.stickerify.Conversion")
+@Label("Conversion")
+@Category("Stickerify")
+@Description("Conversion of a media into a sticker")
+@StackTrace(false)
+final class ConversionEvent extends Event {
+
+	@Label("MIME Type")
+	String mimeType;
+
+	@Label("Input Size")
+	@DataAmount
+	long inputSize;
+
+	@Label("Output Size")
+	@DataAmount
+	@Description("Size of the converted media, 0 if no conversion was needed or if it failed")
+	long outputSize;
+}
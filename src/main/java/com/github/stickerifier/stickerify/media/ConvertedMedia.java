@@ -0,0 +1,9 @@
+package com.github.stickerifier.stickerify.media;
+
+/**
+ * Data class representing a media converted without being written to disk.
+ *
+ * @param content the bytes of the converted media
+ * @param fileName the name to use when sending the media
+ */
+public record ConvertedMedia(byte[] content, String fileName) {}
@@ -0,0 +1,95 @@
+package com.github.stickerifier.stickerify.media;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import java.util.Arrays;
+
+/**
+ * Data class representing the properties of a PNG or WebP image, read from its header without decoding the image.
+ * <p>
+ * The dimensions of a PNG image are read from its {@code IHDR} chunk, the ones of a WebP image from its first chunk:
+ * either {@code VP8 } for lossy images, {@code VP8L} for lossless images,
+ * or {@code VP8X} for images using the extended format, whose flags also tell if the image is animated.
+ *
+ * @param width the width of the image
+ * @param height the height of the image
+ * @param animated {@code true} if the image contains an animation
+ */
+record ImageHeader(int width, int height, boolean animated) {
+
+	/**
+	 * The number of bytes needed to read the header of the supported formats.
+	 */
+	static final int SIZE = 30;
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final byte[] IHDR_CHUNK = ascii("IHDR");
+	private static final byte[] RIFF_SIGNATURE = ascii("RIFF");
+	private static final byte[] WEBP_FOURCC = ascii("WEBP");
+	private static final byte[] VP8_START_CODE = { (byte) 0x9D, 0x01, 0x2A };
+	private static final int VP8L_SIGNATURE = 0x2F;
+	private static final int VP8X_ANIMATION_FLAG = 0x02;
+
+	/**
+	 * Reads the header of the image contained in passed-in bytes.
+	 *
+	 * @param bytes the first bytes of the file, at least {@link #SIZE} bytes are needed
+	 * @return the header of the image, {@code null} if the bytes don't start with a valid PNG or WebP header
+	 */
+	static ImageHeader of(byte[] bytes) {
+		if (bytes.length < SIZE) {
+			return null;
+		}
+
+		if (startsWith(bytes, 0, PNG_SIGNATURE) && startsWith(bytes, 12, IHDR_CHUNK)) {
+			return new ImageHeader(readIntBigEndian(bytes, 16), readIntBigEndian(bytes, 20), false);
+		}
+
+		if (startsWith(bytes, 0, RIFF_SIGNATURE) && startsWith(bytes, 8, WEBP_FOURCC)) {
+			return readWebpHeader(bytes);
+		}
+
+		return null;
+	}
+
+	private static ImageHeader readWebpHeader(byte[] bytes) {
+		var chunk = new String(bytes, 12, 4, ISO_8859_1);
+
+		return switch (chunk) {
+			case "VP8 " -> startsWith(bytes, 23, VP8_START_CODE)
+					? new ImageHeader(readShortLittleEndian(bytes, 26) & 0x3FFF, readShortLittleEndian(bytes, 28) & 0x3FFF, false)
+					: null;
+			case "VP8L" -> {
+				if ((bytes[20] & 0xFF) != VP8L_SIGNATURE) {
+					yield null;
+				}
+
+				var bits = readShortLittleEndian(bytes, 21) | readShortLittleEndian(bytes, 23) << 16;
+				yield new ImageHeader((bits & 0x3FFF) + 1, (bits >>> 14 & 0x3FFF) + 1, false);
+			}
+			case "VP8X" -> new ImageHeader(readInt24LittleEndian(bytes, 24) + 1, readInt24LittleEndian(bytes, 27) + 1,
+					(bytes[20] & VP8X_ANIMATION_FLAG) != 0);
+			default -> null;
+		};
+	}
+
+	private static int readIntBigEndian(byte[] bytes, int offset) {
+		return (bytes[offset] & 0xFF) << 24 | (bytes[offset + 1] & 0xFF) << 16 | (bytes[offset + 2] & 0xFF) << 8 | bytes[offset + 3] & 0xFF;
+	}
+
+	private static int readShortLittleEndian(byte[] bytes, int offset) {
+		return bytes[offset] & 0xFF | (bytes[offset + 1] & 0xFF) << 8;
+	}
+
+	private static int readInt24LittleEndian(byte[] bytes, int offset) {
+		return readShortLittleEndian(bytes, offset) | (bytes[offset + 2] & 0xFF) << 16;
+	}
+
+	private static boolean startsWith(byte[] bytes, int offset, byte[] signature) {
+		return Arrays.equals(bytes, offset, offset + signature.length, signature, 0, signature.length);
+	}
+
+	private static byte[] ascii(String text) {
+		return text.getBytes(ISO_8859_1);
+	}
+}
@@ -12,19 +12,26 @@ import static com.github.stickerifier.stickerify.media.MediaConstraints.MAX_VIDE
 import static com.github.stickerifier.stickerify.media.MediaConstraints.VP9_CODEC;
 import static java.nio.charset.StandardCharsets.UTF_8;
 
+import com.github.stickerifier.stickerify.cancellation.CancellationToken;
 import com.github.stickerifier.stickerify.exception.CorruptedVideoException;
 import com.github.stickerifier.stickerify.exception.FileOperationException;
 import com.github.stickerifier.stickerify.exception.MediaException;
 import com.github.stickerifier.stickerify.exception.MediaOptimizationException;
 import com.github.stickerifier.stickerify.exception.ProcessException;
+import com.github.stickerifier.stickerify.exception.RequestCancelledException;
+import com.github.stickerifier.stickerify.metrics.MetricsHelper;
+import com.github.stickerifier.stickerify.metrics.RequestMetrics;
+import com.github.stickerifier.stickerify.metrics.Stage;
 import com.github.stickerifier.stickerify.process.PathLocator;
 import com.github.stickerifier.stickerify.process.ProcessHelper;
+import com.github.stickerifier.stickerify.process.ProcessOptions;
+import com.github.stickerifier.stickerify.process.ProcessProgress;
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 import com.google.gson.annotations.SerializedName;
 import com.sksamuel.scrimage.ImmutableImage;
-import com.sksamuel.scrimage.webp.WebpWriter;
-import org.apache.tika.Tika;
+import com.sksamuel.scrimage.metadata.ImageMetadata;
+import com.sksamuel.scrimage.metadata.OrientationTools;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ws.schild.jave.EncoderException;
@@ -33,11 +40,16 @@ import ws.schild.jave.info.MultimediaInfo;
 import ws.schild.jave.process.ProcessLocator;
 
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
 import java.util.zip.GZIPInputStream;
 
 public final class MediaHelper {
@@ -50,10 +62,20 @@ public final class MediaHelper {
 	private static final Logger LOGGER = LoggerFactory.getLogger(MediaHelper.class);
 
 	private static final Gson GSON = new Gson();
+	private static final MimeTypeDetector MIME_TYPE_DETECTOR = new MimeTypeDetector();
 	static final ProcessLocator FFMPEG_LOCATOR = new PathLocator();
 	private static final int PRESERVE_ASPECT_RATIO = -2;
+	private static final int MAX_ENCODING_ATTEMPTS = 3;
+	private static final long TARGET_VIDEO_FILE_SIZE = MAX_VIDEO_FILE_SIZE * 9 / 10;
+	private static final long MIN_VIDEO_BITRATE = 32_000L;
+	private static final double BITS_PER_PIXEL = 0.15;
+	private static final double MIN_SIZE_REDUCTION_RATIO = 0.95;
+	private static final Duration MIN_ENCODING_TIMEOUT = Duration.ofSeconds(30);
+	private static final long ENCODING_MILLIS_PER_MEGAPIXEL = 100L;
+	private static final float MAX_INPUT_FRAME_RATE = 120F;
 	private static final List<String> SUPPORTED_VIDEOS = List.of("image/gif", "video/quicktime", "video/webm",
 			"video/mp4", "video/x-m4v", "application/x-matroska", "video/x-msvideo");
+	private static final List<String> GENERIC_FORMATS = List.of("application/octet-stream", "application/gzip", "application/xml");
 
 	/**
 	 * Based on the type of passed-in file, it converts it into the proper media.
@@ -64,25 +86,136 @@ public final class MediaHelper {
 	 * @throws MediaException if the file is not supported or if the conversion failed
 	 */
 	public static File convert(File inputFile) throws MediaException {
-		var mimeType = detectMimeType(inputFile);
+		return convert(inputFile, CancellationToken.create(), RequestMetrics.NONE);
+	}
+
+	/**
+	 * Based on the type of passed-in file, it converts it into the proper media.
+	 * The conversion is aborted as soon as {@code token} is cancelled: the stages not started yet are skipped,
+	 * and the external processes running are terminated.
+	 * If no conversion was needed, {@code null} is returned.
+	 *
+	 * @param inputFile the file to convert
+	 * @param token the token of the request the file belongs to
+	 * @param metrics the metrics of the request, collecting the durations of the stages of the conversion
+	 * @return a resized and converted file
+	 * @throws MediaException if the file is not supported or if the conversion failed
+	 * @throws RequestCancelledException if the token was cancelled
+	 */
+	public static File convert(File inputFile, CancellationToken token, RequestMetrics metrics) throws MediaException {
+		return switch (convert(MediaSource.of(inputFile), token, metrics)) {
+			case null -> null;
+			case WebpImage(var content) -> createWebpFile(content);
+			case WebmVideo(var webmVideo) -> webmVideo;
+		};
+	}
+
+	/**
+	 * Based on the type of passed-in content, it converts it into the proper media keeping it in memory:
+	 * temp files are only used to convert videos, since FFmpeg needs to read them from disk.
+	 * If no conversion was needed, {@code null} is returned.
+	 *
+	 * @param content the content of the file to convert
+	 * @return the resized and converted media
+	 * @throws MediaException if the file is not supported or if the conversion failed
+	 */
+	public static ConvertedMedia convert(byte[] content) throws MediaException {
+		return convert(content, CancellationToken.create(), RequestMetrics.NONE);
+	}
+
+	/**
+	 * Based on the type of passed-in content, it converts it into the proper media keeping it in memory,
+	 * aborting the conversion as soon as {@code token} is cancelled.
+	 * If no conversion was needed, {@code null} is returned.
+	 *
+	 * @param content the content of the file to convert
+	 * @param token the token of the request the file belongs to
+	 * @param metrics the metrics of the request, collecting the durations of the stages of the conversion
+	 * @return the resized and converted media
+	 * @throws MediaException if the file is not supported or if the conversion failed
+	 * @throws RequestCancelledException if the token was cancelled
+	 * @see #convert(File, CancellationToken, RequestMetrics)
+	 */
+	public static ConvertedMedia convert(byte[] content, CancellationToken token, RequestMetrics metrics) throws MediaException {
+		return switch (convert(MediaSource.of(content), token, metrics)) {
+			case null -> null;
+			case WebpImage(var webpContent) -> new ConvertedMedia(webpContent, "Stickerify.webp");
+			case WebmVideo(var webmVideo) -> readVideo(webmVideo);
+		};
+	}
+
+	/**
+	 * The result of a conversion: images are encoded in memory, while videos are written to disk by FFmpeg.
+	 */
+	private sealed interface Conversion {}
+
+	private record WebpImage(byte[] content) implements Conversion {}
+
+	private record WebmVideo(File file) implements Conversion {}
+
+	/**
+	 * Based on the type of passed-in media, it converts it into the proper media, wherever the media is stored.
+	 * If no conversion was needed, {@code null} is returned.
+	 *
+	 * @param source the media to convert
+	 * @param token the token of the request the media belongs to
+	 * @param metrics the metrics of the request the media belongs to
+	 * @return the converted media
+	 * @throws MediaException if the media is not supported or if the conversion failed
+	 * @throws RequestCancelledException if the token was cancelled
+	 */
+	private static Conversion convert(MediaSource source, CancellationToken token, RequestMetrics metrics) throws MediaException {
+		var event = new ConversionEvent();
+		event.begin();
+
+		var mimeType = detectMimeType(source, metrics);
+		event.mimeType = mimeType;
+
+		try {
+			event.inputSize = source.size();
+
+			var conversion = convert(source, mimeType, token, metrics);
+			event.outputSize = switch (conversion) {
+				case null -> 0L;
+				case WebpImage(var content) -> content.length;
+				case WebmVideo(var webmVideo) -> webmVideo.length();
+			};
+
+			return conversion;
+		} finally {
+			event.commit();
+		}
+	}
 
+	private static Conversion convert(MediaSource source, String mimeType, CancellationToken token, RequestMetrics metrics) throws MediaException {
 		try {
+			token.throwIfCancelled();
+
 			if (isSupportedVideo(mimeType)) {
-				return convertToWebm(inputFile);
+				var webmVideo = convertToWebm(source, token, metrics);
+
+				return webmVideo == null ? null : new WebmVideo(webmVideo);
 			}
 
-			if (isAnimatedStickerCompliant(inputFile, mimeType)) {
+			if (isAnimatedStickerCompliant(source, mimeType)) {
 				LOGGER.atInfo().log("The animated sticker doesn't need conversion");
 
 				return null;
 			}
 
-			var image = toImage(inputFile);
-			if (image != null) {
-				boolean isFileSizeCompliant = isFileSizeLowerThan(inputFile, MAX_IMAGE_FILE_SIZE);
+			boolean isFileSizeCompliant = source.size() <= MAX_IMAGE_FILE_SIZE;
+			if (isStaticStickerFormat(mimeType) && isHeaderCompliant(readImageHeader(source), mimeType, isFileSizeCompliant)) {
+				return null;
+			}
 
-				return convertToWebp(image, mimeType, isFileSizeCompliant);
+			var image = toImage(source);
+			if (image != null) {
+				return isConversionNeeded(image, mimeType, isFileSizeCompliant)
+						? new WebpImage(createWebpContent(image, token, metrics))
+						: null;
 			}
+		} catch (RequestCancelledException e) {
+			throw e;
 		} catch (MediaException e) {
 			LOGGER.atWarn().setCause(e).log("The file with {} MIME type could not be converted", mimeType);
 			throw e;
@@ -92,56 +225,100 @@ public final class MediaHelper {
 	}
 
 	/**
-	 * Analyses the file in order to detect its media type.
+	 * Analyses the first bytes of a file to discard as soon as possible the ones which can't be converted.
+	 * Files whose type can't be determined from passed-in bytes are considered to be supported.
 	 *
-	 * @param file the file sent to the bot
-	 * @return the MIME type of the passed-in file
+	 * @param header the first bytes of the file
+	 * @throws MediaException if the bytes belong to a file which is not supported
 	 */
-	private static String detectMimeType(File file) {
+	public static void checkSupportedHeader(byte[] header) throws MediaException {
+		var mimeType = MIME_TYPE_DETECTOR.detect(header);
+
+		if (!isPossiblySupported(mimeType)) {
+			throw new MediaException("The file with {} MIME type is not supported", mimeType);
+		}
+	}
+
+	/**
+	 * Checks if the MIME type could correspond to a media the bot is able to process.
+	 *
+	 * @param mimeType the MIME type to check
+	 * @return {@code true} if the MIME type is not known to be unsupported
+	 */
+	private static boolean isPossiblySupported(String mimeType) {
+		return mimeType == null
+				|| mimeType.startsWith("image/")
+				|| isSupportedVideo(mimeType)
+				|| GENERIC_FORMATS.contains(mimeType);
+	}
+
+	/**
+	 * Analyses the media in order to detect its type.
+	 *
+	 * @param source the media sent to the bot
+	 * @param metrics the metrics of the request the media belongs to
+	 * @return the MIME type of the passed-in media
+	 */
+	private static String detectMimeType(MediaSource source, RequestMetrics metrics) {
+		var start = System.nanoTime();
 		String mimeType = null;
 
 		try {
-			mimeType = new Tika().detect(file);
+			mimeType = MIME_TYPE_DETECTOR.detect(source.readHeader(MimeTypeDetector.HEADER_SIZE));
 
 			LOGGER.atDebug().log("The file has {} MIME type", mimeType);
 		} catch (IOException _) {
-			LOGGER.atError().log("Unable to retrieve MIME type for file {}", file.getName());
+			LOGGER.atError().log("Unable to retrieve MIME type for {}", source);
 		}
 
+		metrics.recordStage(Stage.MIME_DETECT, start);
+		metrics.recordMimeType(mimeType);
+
 		return mimeType;
 	}
 
 	/**
-	 * Checks if the file is a {@code gzip} archive, then it reads its content and verifies if it's a valid JSON.
+	 * Checks if the media is a {@code gzip} archive, then it reads its content and verifies if it's a valid JSON.
 	 * Once JSON information are retrieved, they are validated against Telegram's requirements.
 	 *
-	 * @param file the file to check
-	 * @param mimeType the MIME type of the file
-	 * @return {@code true} if the file is compliant
+	 * @param source the media to check
+	 * @param mimeType the MIME type of the media
+	 * @return {@code true} if the media is compliant
 	 * @throws FileOperationException if an error occurred retrieving the size of the file
 	 */
-	private static boolean isAnimatedStickerCompliant(File file, String mimeType) throws FileOperationException {
+	static boolean isAnimatedStickerCompliant(MediaSource source, String mimeType) throws FileOperationException {
 		if ("application/gzip".equals(mimeType)) {
 			var uncompressedContent = "";
 
-			try (var gzipInputStream = new GZIPInputStream(new FileInputStream(file))) {
+			try (var gzipInputStream = new GZIPInputStream(source.openStream())) {
 				uncompressedContent = new String(gzipInputStream.readAllBytes(), UTF_8);
 			} catch (IOException _) {
-				LOGGER.atError().log("Unable to retrieve gzip content from file {}", file.getName());
+				LOGGER.atError().log("Unable to retrieve gzip content from {}", source);
 			}
 
-			try {
-				var sticker = GSON.fromJson(uncompressedContent, AnimationDetails.class);
+			return isAnimatedStickerCompliant(uncompressedContent) && source.size() <= MAX_ANIMATION_FILE_SIZE;
+		}
+
+		return false;
+	}
 
-				boolean isAnimationCompliant = isAnimationCompliant(sticker);
-				if (isAnimationCompliant) {
-					return isFileSizeLowerThan(file, MAX_ANIMATION_FILE_SIZE);
-				}
+	/**
+	 * Parses the uncompressed content of an archive and validates it against Telegram's requirements.
+	 *
+	 * @param uncompressedContent the JSON describing the animation
+	 * @return {@code true} if the content is a compliant animated sticker
+	 */
+	private static boolean isAnimatedStickerCompliant(String uncompressedContent) {
+		try {
+			var sticker = GSON.fromJson(uncompressedContent, AnimationDetails.class);
 
-				LOGGER.atWarn().log("The {} doesn't meet Telegram's requirements", sticker);
-			} catch (JsonSyntaxException _) {
-				LOGGER.atInfo().log("The archive isn't an animated sticker");
+			if (isAnimationCompliant(sticker)) {
+				return true;
 			}
+
+			LOGGER.atWarn().log("The {} doesn't meet Telegram's requirements", sticker);
+		} catch (JsonSyntaxException _) {
+			LOGGER.atInfo().log("The archive isn't an animated sticker");
 		}
 
 		return false;
@@ -187,29 +364,102 @@ public final class MediaHelper {
 	 * @throws FileOperationException if an error occurred retrieving the size of the file
 	 */
 	private static boolean isFileSizeLowerThan(File file, long threshold) throws FileOperationException {
+		return getFileSize(file) <= threshold;
+	}
+
+	/**
+	 * Retrieves the size of passed-in file.
+	 *
+	 * @param file the file to check
+	 * @return the size of the file in bytes
+	 * @throws FileOperationException if an error occurred retrieving the size of the file
+	 */
+	private static long getFileSize(File file) throws FileOperationException {
 		try {
-			return Files.size(file.toPath()) <= threshold;
+			return Files.size(file.toPath());
 		} catch (IOException e) {
 			throw new FileOperationException(e);
 		}
 	}
 
 	/**
-	 * Retrieve the image from the passed-in file.
-	 * If the file isn't a supported image, {@code null} is returned.
+	 * Reads the header of the image contained in passed-in media, without reading the rest of it.
 	 *
-	 * @param file the file to read
+	 * @param source the media to read
+	 * @return the header of the image, {@code null} if the media isn't a PNG or WebP image
+	 * @throws FileOperationException if an error occurred reading the media
+	 */
+	private static ImageHeader readImageHeader(MediaSource source) throws FileOperationException {
+		try {
+			return ImageHeader.of(source.readHeader(ImageHeader.SIZE));
+		} catch (IOException e) {
+			throw new FileOperationException("An error occurred reading the header of the image", e);
+		}
+	}
+
+	/**
+	 * Retrieve the image from the passed-in media.
+	 * If the media isn't a supported image, {@code null} is returned.
+	 *
+	 * @param source the media to read
 	 * @return the image, if supported by {@link ImageIO}
-	 * @throws FileOperationException if an error occurred processing passed-in file
 	 */
-	private static ImmutableImage toImage(File file) throws FileOperationException {
+	static ImmutableImage toImage(MediaSource source) {
+		try (var stream = source.openImageStream()) {
+			var image = readSubsampledImage(stream);
+			if (image != null) {
+				return OrientationTools.reorient(image, source.readMetadata());
+			}
+		} catch (IOException _) {
+			LOGGER.atDebug().log("Unable to decode the image with ImageIO, falling back to Scrimage");
+		}
+
 		try {
-			return ImmutableImage.loader().fromFile(file);
+			return source.loadImage();
 		} catch (IOException _) {
 			return null;
 		}
 	}
 
+	/**
+	 * Decodes the first image of the stream reading only the pixels needed for the resulting sticker:
+	 * once its dimensions are known, the image is subsampled so that its longest side is
+	 * between 1 and 2 times {@link MediaConstraints#MAX_SIDE_LENGTH}, and it's never subsampled if it's smaller than that.
+	 * The orientation stored in the EXIF metadata isn't applied, so the image has to be rotated by the caller.
+	 *
+	 * @param stream the stream to read the image from
+	 * @return the decoded image, {@code null} if there is no {@link ImageIO} reader for the format
+	 * @throws IOException if an error occurs decoding the image
+	 */
+	private static ImmutableImage readSubsampledImage(ImageInputStream stream) throws IOException {
+		if (stream == null) {
+			return null;
+		}
+
+		var readers = ImageIO.getImageReaders(stream);
+		if (!readers.hasNext()) {
+			return null;
+		}
+
+		var reader = readers.next();
+		try {
+			reader.setInput(stream, true, true);
+
+			int longestSide = Math.max(reader.getWidth(0), reader.getHeight(0));
+			int subsampling = Math.max(1, longestSide / MAX_SIDE_LENGTH);
+
+			var readParam = reader.getDefaultReadParam();
+			if (subsampling > 1) {
+				readParam.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				LOGGER.atDebug().log("Decoding the {}x{} image with subsampling factor {}", reader.getWidth(0), reader.getHeight(0), subsampling);
+			}
+
+			return ImmutableImage.fromAwt(reader.read(0, readParam));
+		} finally {
+			reader.dispose();
+		}
+	}
+
 	/**
 	 * Checks if the MIME type corresponds to one of the supported video formats.
 	 *
@@ -221,22 +471,51 @@ public final class MediaHelper {
 	}
 
 	/**
-	 * Given an image file, it converts it to a WebP file of the proper dimension (max 512 x 512).
+	 * Checks if passed-in image needs to be converted to meet Telegram's requisites.
 	 *
-	 * @param image the image to convert to WebP
+	 * @param image the image to check
 	 * @param mimeType the MIME type of the file
 	 * @param isFileSizeCompliant {@code true} if the file does not exceed Telegram's limit
-	 * @return converted image, {@code null} if no conversion was needed
-	 * @throws MediaException if an error occurred processing passed-in image
+	 * @return {@code true} if the image has to be converted
 	 */
-	private static File convertToWebp(ImmutableImage image, String mimeType, boolean isFileSizeCompliant) throws MediaException {
+	private static boolean isConversionNeeded(ImmutableImage image, String mimeType, boolean isFileSizeCompliant) {
 		if (isImageCompliant(image, mimeType) && isFileSizeCompliant) {
 			LOGGER.atInfo().log("The image doesn't need conversion");
 
-			return null;
+			return false;
 		}
 
-		return createWebpFile(image);
+		return true;
+	}
+
+	/**
+	 * Checks, looking only at the header of the image, if it's already compliant with Telegram's requisites,
+	 * so that compliant images are never decoded.
+	 * Animated images are rejected, since they can't be turned into static stickers.
+	 *
+	 * @param header the header of the image, {@code null} if it couldn't be read
+	 * @param mimeType the MIME type of the file
+	 * @param isFileSizeCompliant {@code true} if the file does not exceed Telegram's limit
+	 * @return {@code true} if the image doesn't need conversion,
+	 * {@code false} if it does or if the header couldn't be read and the image has to be decoded to find out
+	 * @throws MediaException if the image is animated
+	 */
+	private static boolean isHeaderCompliant(ImageHeader header, String mimeType, boolean isFileSizeCompliant) throws MediaException {
+		if (header == null) {
+			return false;
+		}
+
+		if (header.animated()) {
+			throw new MediaException("The animated image with {} MIME type is not supported", mimeType);
+		}
+
+		if (isImageCompliant(header, mimeType) && isFileSizeCompliant) {
+			LOGGER.atInfo().log("The image doesn't need conversion");
+
+			return true;
+		}
+
+		return false;
 	}
 
 	/**
@@ -247,8 +526,24 @@ public final class MediaHelper {
 	 * @param mimeType the MIME type of the file
 	 * @return {@code true} if the file is compliant
 	 */
-	private static boolean isImageCompliant(ImmutableImage image, String mimeType) {
-		return ("image/png".equals(mimeType) || "image/webp".equals(mimeType)) && isSizeCompliant(image.width, image.height);
+	static boolean isImageCompliant(ImmutableImage image, String mimeType) {
+		return isStaticStickerFormat(mimeType) && isSizeCompliant(image.width, image.height);
+	}
+
+	/**
+	 * Checks if the image described by passed-in header is already compliant with Telegram's requisites.
+	 *
+	 * @param header the header of the image to check
+	 * @param mimeType the MIME type of the file
+	 * @return {@code true} if the file is compliant
+	 * @see #isImageCompliant(ImmutableImage, String)
+	 */
+	static boolean isImageCompliant(ImageHeader header, String mimeType) {
+		return isStaticStickerFormat(mimeType) && !header.animated() && isSizeCompliant(header.width(), header.height());
+	}
+
+	private static boolean isStaticStickerFormat(String mimeType) {
+		return "image/png".equals(mimeType) || "image/webp".equals(mimeType);
 	}
 
 	/**
@@ -264,36 +559,47 @@ public final class MediaHelper {
 	}
 
 	/**
-	 * Creates a new <i>.webp</i> file from passed-in {@code image}, resizing it with sides of max 512 pixels each.
+	 * Writes passed-in WebP image to a new <i>.webp</i> file.
 	 *
-	 * @param image the image to convert to WebP
+	 * @param webpContent the bytes of the converted image
 	 * @return converted image
-	 * @throws MediaException if an error occurs creating the temp file or
-	 * if the image size could not be reduced enough to meet Telegram's requirements
+	 * @throws FileOperationException if an error occurs creating the temp file
 	 */
-	private static File createWebpFile(ImmutableImage image) throws MediaException {
+	private static File createWebpFile(byte[] webpContent) throws FileOperationException {
 		var webpImage = createTempFile("webp");
-		var deleteTempFile = false;
 
 		try {
-			image.max(MAX_SIDE_LENGTH, MAX_SIDE_LENGTH).output(WebpWriter.MAX_LOSSLESS_COMPRESSION, webpImage);
-
-			if (!isFileSizeLowerThan(webpImage, MAX_IMAGE_FILE_SIZE)) {
-				deleteTempFile = true;
-				throw new MediaOptimizationException("The image size could not be reduced enough to meet Telegram's requirements");
-			}
+			Files.write(webpImage.toPath(), webpContent);
+			MetricsHelper.recordTempFile(webpImage.toPath(), webpContent.length);
 		} catch (IOException e) {
-			deleteTempFile = true;
+			deleteFile(webpImage);
 			throw new FileOperationException("An unexpected error occurred trying to create resulting image", e);
-		} finally {
-			if (deleteTempFile) {
-				deleteFile(webpImage);
-			}
 		}
 
 		return webpImage;
 	}
 
+	/**
+	 * Encodes passed-in {@code image} as WebP in memory, resizing it with sides of max 512 pixels each.
+	 *
+	 * @param image the image to convert to WebP
+	 * @param token the token of the request the image belongs to
+	 * @param metrics the metrics of the request the image belongs to
+	 * @return the bytes of the converted image
+	 * @throws MediaException if an error occurs encoding the image or
+	 * if the image size could not be reduced enough to meet Telegram's requirements
+	 */
+	private static byte[] createWebpContent(ImmutableImage image, CancellationToken token, RequestMetrics metrics) throws MediaException {
+		token.throwIfCancelled();
+		var start = System.nanoTime();
+
+		try {
+			return WebpEncoder.encode(image.max(MAX_SIDE_LENGTH, MAX_SIDE_LENGTH), token);
+		} finally {
+			metrics.recordStage(Stage.ENCODE, start);
+		}
+	}
+
 	/**
 	 * Creates a new temp file with desired extension.
 	 *
@@ -318,6 +624,7 @@ public final class MediaHelper {
 	private static void deleteFile(File file) throws FileOperationException {
 		try {
 			Files.deleteIfExists(file.toPath());
+			MetricsHelper.recordTempFileDeleted(file.toPath());
 		} catch (IOException e) {
 			throw new FileOperationException("An error occurred deleting the file", e);
 		}
@@ -328,11 +635,20 @@ public final class MediaHelper {
 	 * based on the requirements specified by <a href="https://core.telegram.org/stickers/webm-vp9-encoding">Telegram documentation</a>.
 	 *
 	 * @param file the file to convert
+	 * @param token the token of the request the video belongs to
+	 * @param metrics the metrics of the request the video belongs to
 	 * @return converted video, {@code null} if no conversion was needed
 	 * @throws MediaException if file conversion is not successful
 	 */
-	private static File convertToWebm(File file) throws MediaException {
-		var mediaInfo = retrieveMultimediaInfo(file);
+	private static File convertToWebm(File file, CancellationToken token, RequestMetrics metrics) throws MediaException {
+		var start = System.nanoTime();
+		MultimediaInfo mediaInfo;
+
+		try {
+			mediaInfo = retrieveMultimediaInfo(file);
+		} finally {
+			metrics.recordStage(Stage.PROBE, start);
+		}
 
 		if (isVideoCompliant(file, mediaInfo)) {
 			LOGGER.atInfo().log("The video doesn't need conversion");
@@ -340,7 +656,53 @@ public final class MediaHelper {
 			return null;
 		}
 
-		return convertWithFfmpeg(file, mediaInfo);
+		return convertWithFfmpeg(file, mediaInfo, token, metrics);
+	}
+
+	/**
+	 * Given a video, it converts it to a WebM file of the proper dimension (max 512 x 512).
+	 * Since FFmpeg needs to read the video from disk, a video loaded in memory is temporarily written to a file.
+	 *
+	 * @param source the video to convert
+	 * @param token the token of the request the video belongs to
+	 * @param metrics the metrics of the request the video belongs to
+	 * @return converted video, {@code null} if no conversion was needed
+	 * @throws MediaException if file conversion is not successful
+	 */
+	private static File convertToWebm(MediaSource source, CancellationToken token, RequestMetrics metrics) throws MediaException {
+		if (source instanceof MediaSource.FileSource(var file)) {
+			return convertToWebm(file, token, metrics);
+		}
+
+		var inputFile = createTempFile("tmp");
+
+		try (var stream = source.openStream()) {
+			var copiedBytes = Files.copy(stream, inputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			MetricsHelper.recordTempFile(inputFile.toPath(), copiedBytes);
+
+			return convertToWebm(inputFile, token, metrics);
+		} catch (IOException e) {
+			throw new FileOperationException("An unexpected error occurred trying to convert the video", e);
+		} finally {
+			deleteFile(inputFile);
+		}
+	}
+
+	/**
+	 * Reads the converted video into memory, deleting its file.
+	 *
+	 * @param webmVideo the converted video
+	 * @return the content of the video
+	 * @throws FileOperationException if an error occurs reading or deleting the file
+	 */
+	private static ConvertedMedia readVideo(File webmVideo) throws FileOperationException {
+		try {
+			return new ConvertedMedia(Files.readAllBytes(webmVideo.toPath()), webmVideo.getName());
+		} catch (IOException e) {
+			throw new FileOperationException("An unexpected error occurred trying to convert the video", e);
+		} finally {
+			deleteFile(webmVideo);
+		}
 	}
 
 	/**
@@ -350,7 +712,7 @@ public final class MediaHelper {
 	 * @return passed-in video's multimedia information
 	 * @throws CorruptedVideoException if an error occurred retrieving video information
 	 */
-	private static MultimediaInfo retrieveMultimediaInfo(File file) throws CorruptedVideoException {
+	static MultimediaInfo retrieveMultimediaInfo(File file) throws CorruptedVideoException {
 		try {
 			return new MultimediaObject(file, FFMPEG_LOCATOR).getInfo();
 		} catch (EncoderException e) {
@@ -367,7 +729,7 @@ public final class MediaHelper {
 	 * @return {@code true} if the file is compliant
 	 * @throws FileOperationException if an error occurred retrieving the size of the file
 	 */
-	private static boolean isVideoCompliant(File file, MultimediaInfo mediaInfo) throws FileOperationException {
+	static boolean isVideoCompliant(File file, MultimediaInfo mediaInfo) throws FileOperationException {
 		var videoInfo = mediaInfo.getVideo();
 		var videoSize = videoInfo.getSize();
 
@@ -383,38 +745,235 @@ public final class MediaHelper {
 
 	/**
 	 * Converts the passed-in file using FFmpeg applying Telegram's video stickers' constraints.
+	 * The bitrate is initially estimated from the duration and the resolution of the video: if the result still exceeds
+	 * the maximum file size, the video is encoded again correcting the bitrate based on the size of the previous attempt.
+	 * An attempt is aborted as soon as the bytes written by FFmpeg exceed the maximum file size, estimating its final size
+	 * from the part of the video encoded so far.
+	 * The encoding stops as soon as it's clear the size can't be reduced enough.
 	 *
 	 * @param file the file to convert
 	 * @param mediaInfo video's multimedia information
+	 * @param token the token of the request the video belongs to, terminating FFmpeg when cancelled
+	 * @param metrics the metrics of the request the video belongs to
 	 * @return converted video
 	 * @throws MediaException if file conversion is not successful
+	 * @throws MediaOptimizationException if the video size could not be reduced enough to meet Telegram's requirements
 	 */
-	private static File convertWithFfmpeg(File file, MultimediaInfo mediaInfo) throws MediaException {
+	private static File convertWithFfmpeg(File file, MultimediaInfo mediaInfo, CancellationToken token, RequestMetrics metrics) throws MediaException {
 		var webmVideo = createTempFile("webm");
 		var videoDetails = getResultingVideoDetails(mediaInfo);
+		var deleteTempFile = true;
+
+		long bitrate = estimateBitrate(mediaInfo);
+		long previousSize = Long.MAX_VALUE;
+		long durationMicros = computeEncodedDurationMillis(mediaInfo) * 1_000L;
+		var decodedMegapixels = computeDecodedMegapixels(mediaInfo);
+		var start = System.nanoTime();
+		int attempts = 0;
+		int abortedAttempts = 0;
 
-		var ffmpegCommand = new String[] {
+		try {
+			while (attempts < MAX_ENCODING_ATTEMPTS) {
+				token.throwIfCancelled();
+				attempts++;
+				long targetBitrate = bitrate;
+				var encoding = encodeVideo(threads -> buildFfmpegCommand(file, webmVideo, videoDetails, targetBitrate, threads), webmVideo, decodedMegapixels, durationMicros, token);
+
+				long size = encoding.size();
+				if (encoding.aborted()) {
+					abortedAttempts++;
+				} else if (size <= MAX_VIDEO_FILE_SIZE) {
+					LOGGER.atInfo().log("The video has been encoded in {} attempts: its size is {} bytes", attempts, size);
+					MetricsHelper.recordVideoSize(size);
+					MetricsHelper.recordTempFile(webmVideo.toPath(), size);
+					deleteTempFile = false;
+
+					return webmVideo;
+				}
+
+				LOGGER.atDebug().log("Encoding attempt {} at {} bps resulted in {} bytes (aborted: {})", attempts, targetBitrate, size, encoding.aborted());
+
+				bitrate = targetBitrate * TARGET_VIDEO_FILE_SIZE / size;
+				if (bitrate < MIN_VIDEO_BITRATE || size > previousSize * MIN_SIZE_REDUCTION_RATIO) {
+					break;
+				}
+
+				previousSize = size;
+			}
+
+			throw new MediaOptimizationException("The video size could not be reduced enough to meet Telegram's requirements");
+		} catch (ProcessException e) {
+			token.throwIfCancelled();
+			throw new MediaException(e.getMessage());
+		} finally {
+			metrics.recordStage(Stage.ENCODE, start);
+			MetricsHelper.recordEncodingAttempts(attempts, abortedAttempts);
+			if (deleteTempFile) {
+				deleteFile(webmVideo);
+			}
+		}
+	}
+
+	/**
+	 * Runs a single FFmpeg encoding, terminating it as soon as the bytes it has written exceed the maximum file size:
+	 * in that case, the final size is estimated assuming the rest of the video needs as many bytes per second
+	 * as the part encoded so far.
+	 *
+	 * @param commandProvider the FFmpeg command, given the number of threads it can use
+	 * @param webmVideo the file where the converted video is written
+	 * @param decodedMegapixels the millions of pixels to decode
+	 * @param durationMicros the duration of the part of the video being converted
+	 * @param token the token of the request the video belongs to, terminating FFmpeg when cancelled
+	 * @return the size of the converted video, and whether it was estimated from an aborted encoding
+	 * @throws ProcessException if FFmpeg failed or was terminated because the request was cancelled
+	 * @throws FileOperationException if the size of the converted video couldn't be read
+	 */
+	private static EncodingAttempt encodeVideo(IntFunction<String[]> commandProvider, File webmVideo, double decodedMegapixels, long durationMicros, CancellationToken token) throws ProcessException, FileOperationException {
+		var attemptToken = CancellationToken.create();
+		var lastProgress = new AtomicReference<ProcessProgress>();
+		Consumer<ProcessProgress> listener = progress -> {
+			logEncodingProgress(progress);
+			lastProgress.set(progress);
+			if (progress.totalSize() > MAX_VIDEO_FILE_SIZE) {
+				attemptToken.cancel("the encoded video exceeded " + MAX_VIDEO_FILE_SIZE + " bytes");
+			}
+		};
+		var options = ProcessOptions.withProgress(estimateEncodingTimeout(decodedMegapixels), listener)
+				.costing(ProcessHelper.estimateCost(decodedMegapixels))
+				.cancelledBy(attemptToken);
+
+		try (var _ = token.onCancel(() -> attemptToken.cancel(token.getReason()))) {
+			ProcessHelper.executeCommand(commandProvider, options);
+		} catch (ProcessException e) {
+			var progress = lastProgress.get();
+			if (token.isCancelled() || !attemptToken.isCancelled() || progress == null) {
+				throw e;
+			}
+
+			return new EncodingAttempt(estimateFinalSize(progress, durationMicros), true);
+		}
+
+		return new EncodingAttempt(getFileSize(webmVideo), false);
+	}
+
+	/**
+	 * Estimates the size of an aborted encoding as if it had completed,
+	 * scaling the bytes written so far by the fraction of the video they cover.
+	 *
+	 * @param progress the last progress reported by FFmpeg
+	 * @param durationMicros the duration of the part of the video being converted
+	 * @return the estimated size, never lower than the bytes already written
+	 */
+	private static long estimateFinalSize(ProcessProgress progress, long durationMicros) {
+		if (progress.outTimeMicros() <= 0 || progress.outTimeMicros() >= durationMicros) {
+			return progress.totalSize();
+		}
+
+		return (long) (progress.totalSize() * ((double) durationMicros / progress.outTimeMicros()));
+	}
+
+	private record EncodingAttempt(long size, boolean aborted) {}
+
+	/**
+	 * Computes the millions of pixels FFmpeg has to decode to convert the video, that is the pixels of every frame
+	 * in the part of the video being converted: they are what mostly determines the cost of the conversion.
+	 *
+	 * @param mediaInfo video's multimedia information
+	 * @return the decoded megapixels
+	 */
+	private static double computeDecodedMegapixels(MultimediaInfo mediaInfo) {
+		var videoInfo = mediaInfo.getVideo();
+		var videoSize = videoInfo.getSize();
+
+		long durationMillis = computeEncodedDurationMillis(mediaInfo);
+		float frameRate = videoInfo.getFrameRate() > 0 ? Math.min(videoInfo.getFrameRate(), MAX_INPUT_FRAME_RATE) : MAX_VIDEO_FRAMES;
+
+		return videoSize.getWidth() * (double) videoSize.getHeight() / 1_000_000 * frameRate * durationMillis / 1_000;
+	}
+
+	/**
+	 * Computes the duration of the part of the video being converted, assuming the longest allowed if it's unknown.
+	 *
+	 * @param mediaInfo video's multimedia information
+	 * @return the duration in milliseconds
+	 */
+	private static long computeEncodedDurationMillis(MultimediaInfo mediaInfo) {
+		return mediaInfo.getDuration() > 0 ? Math.min(mediaInfo.getDuration(), MAX_VIDEO_DURATION_MILLIS) : MAX_VIDEO_DURATION_MILLIS;
+	}
+
+	/**
+	 * Estimates how long FFmpeg can take to convert the video: on top of a fixed allowance,
+	 * it grows with the pixels to decode in the part of the video being converted.
+	 *
+	 * @param decodedMegapixels the millions of pixels to decode
+	 * @return the maximum time a single encoding can take
+	 */
+	private static Duration estimateEncodingTimeout(double decodedMegapixels) {
+		return MIN_ENCODING_TIMEOUT.plusMillis((long) (decodedMegapixels * ENCODING_MILLIS_PER_MEGAPIXEL));
+	}
+
+	private static void logEncodingProgress(ProcessProgress progress) {
+		LOGGER.atTrace().log("Encoded {} frames, {} bytes written at {} speed", progress.frame(), progress.totalSize(), progress.speed());
+	}
+
+	/**
+	 * Estimates the bitrate needed for the converted video to fit into Telegram's file size limit,
+	 * without exceeding the bitrate its resolution and frame rate need.
+	 * If the frame rate is unknown, as it happens with GIFs, the maximum allowed is assumed,
+	 * and if the resolution is unknown the bitrate is only limited by the file size.
+	 *
+	 * @param mediaInfo video's multimedia information
+	 * @return the bitrate in bits per second
+	 */
+	static long estimateBitrate(MultimediaInfo mediaInfo) {
+		var videoInfo = mediaInfo.getVideo();
+		var videoSize = videoInfo.getSize();
+
+		long durationMillis = computeEncodedDurationMillis(mediaInfo);
+		long budgetBitrate = TARGET_VIDEO_FILE_SIZE * 8 * 1_000L / durationMillis;
+
+		if (videoSize == null || videoSize.getWidth() <= 0 || videoSize.getHeight() <= 0) {
+			return Math.max(MIN_VIDEO_BITRATE, budgetBitrate);
+		}
+
+		double scale = (double) MAX_SIDE_LENGTH / Math.max(videoSize.getWidth(), videoSize.getHeight());
+		double pixels = videoSize.getWidth() * scale * videoSize.getHeight() * scale;
+		float frameRate = videoInfo.getFrameRate() > 0 ? Math.min(videoInfo.getFrameRate(), MAX_VIDEO_FRAMES) : MAX_VIDEO_FRAMES;
+		long resolutionBitrate = (long) (pixels * frameRate * BITS_PER_PIXEL);
+
+		return Math.max(MIN_VIDEO_BITRATE, Math.min(budgetBitrate, resolutionBitrate));
+	}
+
+	/**
+	 * Builds the FFmpeg command converting the video, configuring the VP9 encoder to use passed-in number of threads:
+	 * row based multithreading is enabled, and the frame is split in tile columns when it is wide enough.
+	 *
+	 * @param file the file to convert
+	 * @param webmVideo the file where the converted video will be written
+	 * @param videoDetails resulting video's details
+	 * @param bitrate the target bitrate in bits per second
+	 * @param threads the number of threads the encoder can use
+	 * @return the command to execute
+	 */
+	private static String[] buildFfmpegCommand(File file, File webmVideo, ResultingVideoDetails videoDetails, long bitrate, int threads) {
+		return new String[] {
 				"ffmpeg",
 				"-v", "error",
 				"-i", file.getAbsolutePath(),
 				"-vf", "scale=" + videoDetails.width() + ":" + videoDetails.height() + ",fps=" + videoDetails.frameRate(),
 				"-c:v", "libvpx-" + VP9_CODEC,
-				"-b:v", "256k",
+				"-b:v", String.valueOf(bitrate),
 				"-crf", "32",
 				"-g", "60",
+				"-threads", String.valueOf(threads),
+				"-row-mt", "1",
+				"-tile-columns", String.valueOf(videoDetails.tileColumns(threads)),
 				"-an",
 				"-t", videoDetails.duration(),
+				"-nostats",
+				"-progress", "pipe:1",
 				"-y", webmVideo.getAbsolutePath()
 		};
-
-		try {
-			ProcessHelper.executeCommand(ffmpegCommand);
-		} catch (ProcessException e) {
-			deleteFile(webmVideo);
-			throw new MediaException(e.getMessage());
-		}
-
-		return webmVideo;
 	}
 
 	/**
@@ -436,7 +995,18 @@ public final class MediaHelper {
 		return new ResultingVideoDetails(width, height, frameRate, String.valueOf(duration));
 	}
 
-	private record ResultingVideoDetails(int width, int height, float frameRate, String duration) {}
+	private record ResultingVideoDetails(int width, int height, float frameRate, String duration) {
+		/**
+		 * VP9 tiles must be at least 256 pixels wide, so only videos 512 pixels wide can be split in two tile columns,
+		 * and only if there are threads available to encode them in parallel.
+		 *
+		 * @param threads the number of threads the encoder can use
+		 * @return the base 2 logarithm of the number of tile columns
+		 */
+		private int tileColumns(int threads) {
+			return threads > 1 && width == MAX_SIDE_LENGTH ? 1 : 0;
+		}
+	}
 
 	private MediaHelper() {
 		throw new UnsupportedOperationException();
@@ -0,0 +1,169 @@
+package com.github.stickerifier.stickerify.media;
+
+import com.github.stickerifier.stickerify.exception.FileOperationException;
+import com.sksamuel.scrimage.ImmutableImage;
+import com.sksamuel.scrimage.metadata.ImageMetadata;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * The media to convert, either stored in a file or already loaded in memory.
+ * The conversion reads the media only through this interface, so that it follows the same steps wherever the media is.
+ */
+sealed interface MediaSource {
+
+	static MediaSource of(File file) {
+		return new FileSource(file);
+	}
+
+	static MediaSource of(byte[] content) {
+		return new ContentSource(content);
+	}
+
+	/**
+	 * Retrieves the size of the media.
+	 *
+	 * @return the size of the media in bytes
+	 * @throws FileOperationException if an error occurred retrieving the size of the file
+	 */
+	long size() throws FileOperationException;
+
+	/**
+	 * Reads the first bytes of the media, without reading the rest of it.
+	 * The returned array must not be modified, since it may be the content of the media itself.
+	 *
+	 * @param length the number of bytes needed
+	 * @return at least the first {@code length} bytes of the media, all of them if the media is shorter
+	 * @throws IOException if an error occurred reading the media
+	 */
+	byte[] readHeader(int length) throws IOException;
+
+	/**
+	 * Opens a stream reading the media from the beginning.
+	 *
+	 * @return a new stream, to be closed by the caller
+	 * @throws IOException if an error occurred opening the media
+	 */
+	InputStream openStream() throws IOException;
+
+	/**
+	 * Opens a stream {@link ImageIO} can decode the media from.
+	 *
+	 * @return a new stream to be closed by the caller, {@code null} if {@link ImageIO} can't read the media
+	 * @throws IOException if an error occurred opening the media
+	 */
+	ImageInputStream openImageStream() throws IOException;
+
+	/**
+	 * Reads the metadata of the image, which include its EXIF orientation.
+	 *
+	 * @return the metadata of the image
+	 * @throws IOException if an error occurred reading the media
+	 */
+	ImageMetadata readMetadata() throws IOException;
+
+	/**
+	 * Decodes the image with Scrimage, used when {@link ImageIO} can't decode it.
+	 *
+	 * @return the decoded image
+	 * @throws IOException if the media isn't an image Scrimage supports
+	 */
+	ImmutableImage loadImage() throws IOException;
+
+	/**
+	 * Data class representing a media stored in a file.
+	 *
+	 * @param file the file containing the media
+	 */
+	record FileSource(File file) implements MediaSource {
+		@Override
+		public long size() throws FileOperationException {
+			try {
+				return Files.size(file.toPath());
+			} catch (IOException e) {
+				throw new FileOperationException(e);
+			}
+		}
+
+		@Override
+		public byte[] readHeader(int length) throws IOException {
+			try (var stream = openStream()) {
+				return stream.readNBytes(length);
+			}
+		}
+
+		@Override
+		public InputStream openStream() throws IOException {
+			return new FileInputStream(file);
+		}
+
+		@Override
+		public ImageInputStream openImageStream() throws IOException {
+			return ImageIO.createImageInputStream(file);
+		}
+
+		@Override
+		public ImageMetadata readMetadata() throws IOException {
+			return ImageMetadata.fromPath(file.toPath());
+		}
+
+		@Override
+		public ImmutableImage loadImage() throws IOException {
+			return ImmutableImage.loader().fromFile(file);
+		}
+
+		@Override
+		public String toString() {
+			return "file " + file.getName();
+		}
+	}
+
+	/**
+	 * Data class representing a media loaded in memory.
+	 *
+	 * @param content the bytes of the media
+	 */
+	record ContentSource(byte[] content) implements MediaSource {
+		@Override
+		public long size() {
+			return content.length;
+		}
+
+		@Override
+		public byte[] readHeader(int length) {
+			return content;
+		}
+
+		@Override
+		public InputStream openStream() {
+			return new ByteArrayInputStream(content);
+		}
+
+		@Override
+		public ImageInputStream openImageStream() throws IOException {
+			return ImageIO.createImageInputStream(openStream());
+		}
+
+		@Override
+		public ImageMetadata readMetadata() throws IOException {
+			return ImageMetadata.fromBytes(content);
+		}
+
+		@Override
+		public ImmutableImage loadImage() throws IOException {
+			return ImmutableImage.loader().fromBytes(content);
+		}
+
+		@Override
+		public String toString() {
+			return "content of " + content.length + " bytes";
+		}
+	}
+}
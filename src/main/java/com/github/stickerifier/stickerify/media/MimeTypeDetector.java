@@ -0,0 +1,204 @@
+package com.github.stickerifier.stickerify.media;
+
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
+import org.apache.tika.Tika;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Thread-safe service detecting the media type of a file analysing its first bytes.
+ * <p>
+ * The formats handled by the bot are recognized checking their magic numbers,
+ * while {@link Tika} is used only for the files which couldn't be identified this way.
+ */
+public final class MimeTypeDetector {
+
+	/**
+	 * The number of bytes needed to detect the media type of a file.
+	 */
+	public static final int HEADER_SIZE = 8 * 1024;
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final byte[] JPEG_SIGNATURE = { (byte) 0xFF, (byte) 0xD8, (byte) 0xFF };
+	private static final byte[] GZIP_SIGNATURE = { 0x1F, (byte) 0x8B };
+	private static final byte[] EBML_SIGNATURE = { 0x1A, 0x45, (byte) 0xDF, (byte) 0xA3 };
+	private static final byte[] ICO_SIGNATURE = { 0x00, 0x00, 0x01, 0x00 };
+	private static final byte[] TIFF_LITTLE_ENDIAN_SIGNATURE = { 'I', 'I', '*', 0x00 };
+	private static final byte[] TIFF_BIG_ENDIAN_SIGNATURE = { 'M', 'M', 0x00, '*' };
+	private static final byte[] UTF8_BOM = { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+	private static final byte[] GIF87A_SIGNATURE = ascii("GIF87a");
+	private static final byte[] GIF89A_SIGNATURE = ascii("GIF89a");
+	private static final byte[] RIFF_SIGNATURE = ascii("RIFF");
+	private static final byte[] WEBP_FOURCC = ascii("WEBP");
+	private static final byte[] AVI_FOURCC = ascii("AVI ");
+	private static final byte[] FTYP_BOX = ascii("ftyp");
+	private static final byte[] PSD_SIGNATURE = ascii("8BPS");
+	private static final byte[] XML_DECLARATION = ascii("<?xml");
+	private static final byte[] SVG_ELEMENT = ascii("<svg");
+	private static final byte[] WEBM_DOCTYPE = ascii("webm");
+	private static final byte[] MATROSKA_DOCTYPE = ascii("matroska");
+	private static final int EBML_DOCTYPE_SEARCH_LIMIT = 64;
+
+	private final Tika tika = new Tika();
+
+	/**
+	 * Detects the media type of the file reading its first {@link #HEADER_SIZE} bytes.
+	 *
+	 * @param file the file to analyse
+	 * @return the MIME type of the file
+	 * @throws IOException if an error occurs reading the file
+	 */
+	public String detect(File file) throws IOException {
+		try (var stream = new FileInputStream(file)) {
+			return detect(stream.readNBytes(HEADER_SIZE));
+		}
+	}
+
+	/**
+	 * Detects the media type of a file given its first bytes.
+	 *
+	 * @param header the first bytes of the file, at least {@link #HEADER_SIZE} bytes are needed for an accurate result
+	 * @return the MIME type of the file
+	 */
+	public String detect(byte[] header) {
+		var mimeType = detectKnownFormat(header);
+
+		return mimeType != null ? mimeType : tika.detect(header.length > HEADER_SIZE ? Arrays.copyOf(header, HEADER_SIZE) : header);
+	}
+
+	/**
+	 * Checks the magic numbers of the formats handled by the bot.
+	 *
+	 * @param header the first bytes of the file
+	 * @return the MIME type of the file, {@code null} if the format wasn't recognized
+	 */
+	private static String detectKnownFormat(byte[] header) {
+		if (startsWith(header, 0, PNG_SIGNATURE)) {
+			return "image/png";
+		}
+		if (startsWith(header, 0, JPEG_SIGNATURE)) {
+			return "image/jpeg";
+		}
+		if (startsWith(header, 0, GIF87A_SIGNATURE) || startsWith(header, 0, GIF89A_SIGNATURE)) {
+			return "image/gif";
+		}
+		if (startsWith(header, 0, RIFF_SIGNATURE)) {
+			return detectRiffFormat(header);
+		}
+		if (startsWith(header, 0, GZIP_SIGNATURE)) {
+			return "application/gzip";
+		}
+		if (startsWith(header, 0, EBML_SIGNATURE)) {
+			return detectEbmlFormat(header);
+		}
+		if (startsWith(header, 4, FTYP_BOX)) {
+			return detectIsoMediaFormat(header);
+		}
+		if (startsWith(header, 0, TIFF_LITTLE_ENDIAN_SIGNATURE) || startsWith(header, 0, TIFF_BIG_ENDIAN_SIGNATURE)) {
+			return "image/tiff";
+		}
+		if (startsWith(header, 0, PSD_SIGNATURE)) {
+			return "image/vnd.adobe.photoshop";
+		}
+		if (startsWith(header, 0, ICO_SIGNATURE) && header.length > 5 && (header[4] != 0 || header[5] != 0)) {
+			return "image/vnd.microsoft.icon";
+		}
+		if (isSvg(header)) {
+			return "image/svg+xml";
+		}
+
+		return null;
+	}
+
+	private static String detectRiffFormat(byte[] header) {
+		if (startsWith(header, 8, WEBP_FOURCC)) {
+			return "image/webp";
+		}
+		if (startsWith(header, 8, AVI_FOURCC)) {
+			return "video/x-msvideo";
+		}
+
+		return null;
+	}
+
+	/**
+	 * Recognizes the formats based on EBML checking the document type declared in the header,
+	 * returning the same MIME types as Tika: any other EBML document is left to Tika.
+	 *
+	 * @param header the first bytes of the file
+	 * @return the MIME type of the file, {@code null} if the document type isn't WebM or Matroska
+	 */
+	private static String detectEbmlFormat(byte[] header) {
+		if (contains(header, WEBM_DOCTYPE, EBML_DOCTYPE_SEARCH_LIMIT)) {
+			return "video/webm";
+		}
+		if (contains(header, MATROSKA_DOCTYPE, EBML_DOCTYPE_SEARCH_LIMIT)) {
+			return "video/x-matroska";
+		}
+
+		return null;
+	}
+
+	/**
+	 * Recognizes the formats based on the ISO base media file format checking the major brand of the file.
+	 *
+	 * @param header the first bytes of the file
+	 * @return the MIME type of the file, {@code null} if the brand isn't one of the supported ones
+	 */
+	private static String detectIsoMediaFormat(byte[] header) {
+		if (header.length < 12) {
+			return null;
+		}
+
+		var brand = new String(header, 8, 4, ISO_8859_1);
+
+		return switch (brand) {
+			case "qt  " -> "video/quicktime";
+			case "M4V ", "M4VH", "M4VP" -> "video/x-m4v";
+			case "isom", "iso2", "iso4", "iso5", "iso6", "mp41", "mp42", "avc1", "dash", "mmp4" -> "video/mp4";
+			default -> null;
+		};
+	}
+
+	/**
+	 * Checks if the header belongs to an SVG image: the document has to start with either
+	 * the XML declaration or the {@code svg} element, and the latter has to be found in the header.
+	 *
+	 * @param header the first bytes of the file
+	 * @return {@code true} if the file is an SVG image
+	 */
+	private static boolean isSvg(byte[] header) {
+		int offset = startsWith(header, 0, UTF8_BOM) ? UTF8_BOM.length : 0;
+		while (offset < header.length && Character.isWhitespace(header[offset])) {
+			offset++;
+		}
+
+		return (startsWith(header, offset, XML_DECLARATION) || startsWith(header, offset, SVG_ELEMENT))
+				&& contains(header, SVG_ELEMENT, header.length);
+	}
+
+	private static boolean startsWith(byte[] header, int offset, byte[] signature) {
+		return header.length >= offset + signature.length
+				&& Arrays.equals(header, offset, offset + signature.length, signature, 0, signature.length);
+	}
+
+	private static boolean contains(byte[] header, byte[] bytes, int limit) {
+		int end = Math.min(header.length, limit) - bytes.length;
+
+		for (int i = 0; i <= end; i++) {
+			if (startsWith(header, i, bytes)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static byte[] ascii(String text) {
+		return text.getBytes(ISO_8859_1);
+	}
+}
@@ -0,0 +1,344 @@
+package com.github.stickerifier.stickerify.media;
+
+import static com.github.stickerifier.stickerify.media.MediaConstraints.MAX_IMAGE_FILE_SIZE;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import com.github.stickerifier.stickerify.cancellation.CancellationToken;
+import com.github.stickerifier.stickerify.exception.FileOperationException;
+import com.github.stickerifier.stickerify.exception.MediaException;
+import com.github.stickerifier.stickerify.exception.MediaOptimizationException;
+import com.github.stickerifier.stickerify.exception.ProcessException;
+import com.github.stickerifier.stickerify.process.CwebpEncoder;
+import com.github.stickerifier.stickerify.process.ProcessHelper;
+import com.github.stickerifier.stickerify.process.WebpEncoding;
+import com.sksamuel.scrimage.ImmutableImage;
+import com.sksamuel.scrimage.webp.WebpWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Encoder choosing the cheapest WebP configuration able to fit the image into Telegram's file size limit.
+ * <p>
+ * Some statistics of the image (number of colors, transparency and edge density) are used to predict
+ * the size of a lossless encoding: it's attempted unless the prediction exceeds the limit by a wide margin,
+ * and the compression effort is chosen based on how much room is left.
+ * Otherwise, or if the lossless encoding doesn't fit, the highest lossy quality fitting the limit is searched,
+ * encoding several candidates in parallel when there are idle cores.
+ * The whole process is bounded by a wall-clock budget.
+ */
+final class WebpEncoder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(WebpEncoder.class);
+
+	private static final Duration ENCODING_BUDGET = getEncodingBudget();
+	private static final long TARGET_IMAGE_FILE_SIZE = MAX_IMAGE_FILE_SIZE * 8 / 10;
+	private static final long LOSSLESS_ATTEMPT_THRESHOLD = MAX_IMAGE_FILE_SIZE * 2;
+	private static final int MAX_COUNTED_COLORS = 1_024;
+	private static final int PALETTE_COLORS = 256;
+	private static final int EDGE_THRESHOLD = 48;
+	private static final int FAST_LOSSLESS_LEVEL = 6;
+	private static final int MAX_LOSSLESS_LEVEL = 9;
+	private static final int MAX_QUALITY = 90;
+	private static final int MIN_QUALITY = 30;
+	private static final int MAX_LOSSY_ATTEMPTS = 4;
+	private static final List<Integer> PARALLEL_QUALITIES = List.of(MAX_QUALITY, 70, 50, MIN_QUALITY);
+
+	/**
+	 * Encodes the image as WebP, ensuring the result does not exceed {@link MediaConstraints#MAX_IMAGE_FILE_SIZE}.
+	 *
+	 * @param image the image to encode, already resized
+	 * @param token the token of the request the image belongs to, stopping the encoding when cancelled
+	 * @return the bytes of the encoded image
+	 * @throws MediaException if an error occurs encoding the image or
+	 * if the image size could not be reduced enough within the time budget
+	 */
+	static byte[] encode(ImmutableImage image, CancellationToken token) throws MediaException {
+		var deadline = Instant.now().plus(ENCODING_BUDGET);
+		var statistics = ImageStatistics.of(image);
+		long predictedLosslessSize = statistics.predictLosslessSize();
+
+		LOGGER.atDebug().log("Image statistics: {}, predicted lossless size is {} bytes", statistics, predictedLosslessSize);
+
+		if (statistics.mayFitLossless()) {
+			int level = predictedLosslessSize <= TARGET_IMAGE_FILE_SIZE / 4 ? FAST_LOSSLESS_LEVEL : MAX_LOSSLESS_LEVEL;
+			var losslessContent = encode(image, WebpEncoding.lossless(level), token);
+
+			if (fits(losslessContent)) {
+				return losslessContent;
+			}
+
+			LOGGER.atDebug().log("The lossless encoding resulted in {} bytes, falling back to lossy encoding", losslessContent.length);
+		}
+
+		var lossyContent = canEncodeInParallel()
+				? encodeLossyInParallel(image, deadline, token)
+				: searchLossyQuality(image, deadline, token);
+
+		if (lossyContent == null) {
+			throw new MediaOptimizationException("The image size could not be reduced enough to meet Telegram's requirements");
+		}
+
+		return lossyContent;
+	}
+
+	private static boolean canEncodeInParallel() {
+		int idleProcessors = Runtime.getRuntime().availableProcessors() - ProcessHelper.getRunningProcesses();
+
+		return idleProcessors >= PARALLEL_QUALITIES.size();
+	}
+
+	/**
+	 * Encodes the image with several lossy qualities at the same time, picking the highest one fitting the limit.
+	 * The candidates with lower qualities are terminated as soon as one fits, and so are all of them
+	 * once the time budget is exhausted.
+	 *
+	 * @param image the image to encode
+	 * @param deadline the instant after which the candidates still running are discarded
+	 * @param token the token of the request the image belongs to
+	 * @return the bytes of the encoded image, {@code null} if no candidate fits the limit within the time budget
+	 * @throws MediaException if an error occurs encoding the image
+	 */
+	private static byte[] encodeLossyInParallel(ImmutableImage image, Instant deadline, CancellationToken token) throws MediaException {
+		var candidatesToken = CancellationToken.create();
+		var executor = Executors.newVirtualThreadPerTaskExecutor();
+		List<Future<byte[]>> candidates = new ArrayList<>(PARALLEL_QUALITIES.size());
+
+		try (var _ = token.onCancel(() -> candidatesToken.cancel(token.getReason()))) {
+			for (var quality : PARALLEL_QUALITIES) {
+				candidates.add(executor.submit(() -> encode(image, WebpEncoding.lossy(quality), candidatesToken)));
+			}
+
+			for (var candidate : candidates) {
+				long remainingNanos = Math.max(0, Duration.between(Instant.now(), deadline).toNanos());
+				var content = candidate.get(remainingNanos, NANOSECONDS);
+				if (fits(content)) {
+					return content;
+				}
+			}
+		} catch (TimeoutException _) {
+			LOGGER.atWarn().log("The parallel image encoding exceeded its time budget");
+		} catch (ExecutionException e) {
+			token.throwIfCancelled();
+			if (e.getCause() instanceof MediaException mediaException) {
+				throw mediaException;
+			}
+			throw new FileOperationException("An unexpected error occurred trying to create resulting image", e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new MediaException("The image encoding was interrupted", e);
+		} finally {
+			candidatesToken.cancel("the parallel encoding completed");
+			executor.shutdownNow();
+		}
+
+		return null;
+	}
+
+	/**
+	 * Searches the highest lossy quality fitting the limit, starting from {@link #MAX_QUALITY}
+	 * and bisecting the range of qualities for a bounded number of attempts.
+	 *
+	 * @param image the image to encode
+	 * @param deadline the instant after which no new attempt is made
+	 * @param token the token of the request the image belongs to
+	 * @return the bytes of the encoded image, {@code null} if no quality fits the limit
+	 * @throws MediaException if an error occurs encoding the image
+	 */
+	private static byte[] searchLossyQuality(ImmutableImage image, Instant deadline, CancellationToken token) throws MediaException {
+		byte[] bestContent = null;
+		int lowestQuality = MIN_QUALITY;
+		int highestQuality = MAX_QUALITY;
+		int quality = MAX_QUALITY;
+
+		for (int attempt = 1; attempt <= MAX_LOSSY_ATTEMPTS && lowestQuality <= highestQuality; attempt++) {
+			if (attempt > 1 && Instant.now().isAfter(deadline)) {
+				LOGGER.atWarn().log("The image encoding exceeded its time budget after {} attempts", attempt - 1);
+				break;
+			}
+
+			token.throwIfCancelled();
+			var content = encode(image, WebpEncoding.lossy(quality), token);
+
+			if (fits(content)) {
+				bestContent = content;
+				lowestQuality = quality + 1;
+			} else {
+				highestQuality = quality - 1;
+			}
+
+			if (bestContent != null && quality == MAX_QUALITY) {
+				break;
+			}
+
+			quality = (lowestQuality + highestQuality) / 2;
+		}
+
+		return bestContent;
+	}
+
+	/**
+	 * Encodes the image piping it through {@code cwebp} if available, otherwise it relies on Scrimage.
+	 *
+	 * @param image the image to encode
+	 * @param encoding the settings of the encoding
+	 * @param token the token of the request the image belongs to, terminating {@code cwebp} when cancelled
+	 * @return the bytes of the encoded image
+	 * @throws MediaException if an error occurs encoding the image
+	 */
+	private static byte[] encode(ImmutableImage image, WebpEncoding encoding, CancellationToken token) throws MediaException {
+		if (CwebpEncoder.isAvailable()) {
+			try {
+				return CwebpEncoder.encode(image.awt(), encoding, token);
+			} catch (ProcessException e) {
+				token.throwIfCancelled();
+				throw new MediaException(e.getMessage());
+			}
+		}
+
+		var writer = encoding.lossless()
+				? WebpWriter.DEFAULT.withLossless().withZ(encoding.level())
+				: WebpWriter.DEFAULT.withQ(encoding.level());
+
+		try {
+			return image.bytes(writer);
+		} catch (IOException e) {
+			throw new FileOperationException("An unexpected error occurred trying to create resulting image", e);
+		}
+	}
+
+	private static boolean fits(byte[] content) {
+		return content.length <= MAX_IMAGE_FILE_SIZE;
+	}
+
+	/**
+	 * Cheap statistics of an image, used to predict the size of its lossless encoding.
+	 *
+	 * @param pixels the number of pixels of the image
+	 * @param colors the number of distinct colors, capped at {@link #MAX_COUNTED_COLORS}
+	 * @param hasAlpha {@code true} if the image has transparent pixels
+	 * @param edgeDensity the ratio of adjacent pixels with a noticeable color difference
+	 */
+	record ImageStatistics(int pixels, int colors, boolean hasAlpha, double edgeDensity) {
+
+		static ImageStatistics of(ImmutableImage image) {
+			int width = image.width;
+			int height = image.height;
+			var argb = image.awt().getRGB(0, 0, width, height, null, 0, width);
+
+			var colors = new ColorCounter();
+			var hasAlpha = false;
+			long edges = 0;
+			long comparisons = 0;
+
+			for (int y = 0; y < height; y++) {
+				for (int x = 0; x < width; x++) {
+					int pixel = argb[y * width + x];
+
+					colors.add(pixel);
+					hasAlpha |= pixel >>> 24 != 0xFF;
+
+					if (x + 1 < width) {
+						edges += isEdge(pixel, argb[y * width + x + 1]) ? 1 : 0;
+						comparisons++;
+					}
+					if (y + 1 < height) {
+						edges += isEdge(pixel, argb[(y + 1) * width + x]) ? 1 : 0;
+						comparisons++;
+					}
+				}
+			}
+
+			double edgeDensity = comparisons == 0 ? 0 : (double) edges / comparisons;
+
+			return new ImageStatistics(width * height, colors.count(), hasAlpha, edgeDensity);
+		}
+
+		private static boolean isEdge(int pixel, int neighbour) {
+			int difference = Math.abs((pixel >>> 24) - (neighbour >>> 24))
+					+ Math.abs((pixel >> 16 & 0xFF) - (neighbour >> 16 & 0xFF))
+					+ Math.abs((pixel >> 8 & 0xFF) - (neighbour >> 8 & 0xFF))
+					+ Math.abs((pixel & 0xFF) - (neighbour & 0xFF));
+
+			return difference > EDGE_THRESHOLD;
+		}
+
+		/**
+		 * Predicts the size of the lossless encoding: images with few colors can be encoded with a palette,
+		 * while edges and transparency make the compression less effective.
+		 *
+		 * @return the predicted size in bytes
+		 */
+		long predictLosslessSize() {
+			double bitsPerPixel = colors <= PALETTE_COLORS ? 1 + 8 * edgeDensity : 5 + 20 * edgeDensity;
+			if (hasAlpha) {
+				bitsPerPixel += 1;
+			}
+
+			return (long) (pixels * bitsPerPixel / 8);
+		}
+
+		/**
+		 * Checks if the lossless encoding is worth attempting: since the prediction is rough,
+		 * it's only ruled out when the predicted size is far beyond the limit.
+		 *
+		 * @return {@code true} if the lossless encoding could fit the limit
+		 */
+		boolean mayFitLossless() {
+			return predictLosslessSize() <= LOSSLESS_ATTEMPT_THRESHOLD;
+		}
+	}
+
+	/**
+	 * Counts the distinct colors of an image up to {@link #MAX_COUNTED_COLORS}, storing them in an open addressing
+	 * hash table of primitive values so that pixels don't need to be boxed.
+	 */
+	private static final class ColorCounter {
+
+		private static final int TABLE_SIZE = Integer.highestOneBit(MAX_COUNTED_COLORS) * 4;
+
+		private final int[] table = new int[TABLE_SIZE];
+		private final boolean[] used = new boolean[TABLE_SIZE];
+		private int count;
+
+		private void add(int color) {
+			if (count >= MAX_COUNTED_COLORS) {
+				return;
+			}
+
+			int slot = (color * 0x9E3779B9) >>> (Integer.SIZE - Integer.numberOfTrailingZeros(TABLE_SIZE));
+			while (used[slot]) {
+				if (table[slot] == color) {
+					return;
+				}
+				slot = (slot + 1) & (TABLE_SIZE - 1);
+			}
+
+			used[slot] = true;
+			table[slot] = color;
+			count++;
+		}
+
+		private int count() {
+			return count;
+		}
+	}
+
+	private static Duration getEncodingBudget() {
+		var value = System.getenv("IMAGE_ENCODING_BUDGET_SECONDS");
+		return Duration.ofSeconds(value == null ? 10 : Long.parseLong(value));
+	}
+
+	private WebpEncoder() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,58 @@
+package com.github.stickerifier.stickerify.metrics;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations with fixed buckets, expressed in seconds.
+ * Observations only touch striped adders, so that concurrent requests never contend on the same counter.
+ */
+final class Histogram {
+
+	private static final double[] BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+	private final LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+	private final DoubleAdder sum = new DoubleAdder();
+
+	Histogram() {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] = new LongAdder();
+		}
+	}
+
+	void observeNanos(long nanos) {
+		var seconds = (double) nanos / SECONDS.toNanos(1);
+
+		var bucket = 0;
+		while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+			bucket++;
+		}
+
+		counts[bucket].increment();
+		sum.add(seconds);
+	}
+
+	/**
+	 * Writes the samples of the histogram in Prometheus text format.
+	 *
+	 * @param out the buffer to write to
+	 * @param name the name of the metric
+	 * @param labels the labels identifying the histogram, already formatted, or an empty string
+	 */
+	void writeTo(StringBuilder out, String name, String labels) {
+		var separator = labels.isEmpty() ? "" : ",";
+		long cumulativeCount = 0;
+
+		for (int i = 0; i < BUCKETS.length; i++) {
+			cumulativeCount += counts[i].sum();
+			MetricsHelper.writeSample(out, name + "_bucket", labels + separator + "le=\"" + BUCKETS[i] + "\"", cumulativeCount);
+		}
+
+		cumulativeCount += counts[BUCKETS.length].sum();
+		MetricsHelper.writeSample(out, name + "_bucket", labels + separator + "le=\"+Inf\"", cumulativeCount);
+		MetricsHelper.writeSample(out, name + "_sum", labels, sum.sum());
+		MetricsHelper.writeSample(out, name + "_count", labels, cumulativeCount);
+	}
+}
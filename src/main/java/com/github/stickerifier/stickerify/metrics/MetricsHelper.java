@@ -0,0 +1,223 @@
+package com.github.stickerifier.stickerify.metrics;
+
+import com.github.stickerifier.stickerify.scheduler.LaneStatistics;
+import com.github.stickerifier.stickerify.scheduler.WorkClass;
+
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects the metrics of the bot and exposes them in Prometheus text format.
+ * <p>
+ * The durations of the stages of a request are gathered in its {@link RequestMetrics}, wherever the stages are executed,
+ * and recorded only once the request is answered, so that they can be labelled with the MIME type of the file
+ * and with the outcome of the request.
+ */
+public final class MetricsHelper {
+
+	private static final Map<StageKey, Histogram> STAGE_DURATIONS = new ConcurrentHashMap<>();
+	private static final Map<String, LongAdder> REQUESTS = new ConcurrentHashMap<>();
+	private static final Histogram PROCESS_WAIT = new Histogram();
+	private static final LongAdder BYTES_IN = new LongAdder();
+	private static final LongAdder BYTES_OUT = new LongAdder();
+	private static final LongAdder VIDEO_ENCODINGS = new LongAdder();
+	private static final LongAdder VIDEO_ENCODING_ATTEMPTS = new LongAdder();
+	private static final LongAdder ABORTED_VIDEO_ENCODING_ATTEMPTS = new LongAdder();
+	private static final LongAdder VIDEO_BYTES = new LongAdder();
+	private static final Map<Path, Long> TEMP_FILES = new ConcurrentHashMap<>();
+
+	/**
+	 * Starts collecting the durations of the stages of a request.
+	 *
+	 * @return the metrics of the request, to be passed to every stage of the request and then to {@link #finishRequest(RequestMetrics)}
+	 */
+	public static RequestMetrics startRequest() {
+		return new RequestMetrics(true);
+	}
+
+	/**
+	 * Records the durations collected for the request.
+	 *
+	 * @param metrics the metrics of the request
+	 * @return the outcome of the request, {@code null} if the metrics don't belong to a request
+	 */
+	public static String finishRequest(RequestMetrics metrics) {
+		if (!metrics.isEnabled()) {
+			return null;
+		}
+
+		var outcome = metrics.getOutcome();
+		var mimeType = metrics.getMimeType();
+
+		REQUESTS.computeIfAbsent(outcome, _ -> new LongAdder()).increment();
+		metrics.getDurations().forEach((stage, nanos) -> STAGE_DURATIONS
+				.computeIfAbsent(new StageKey(stage, mimeType, outcome), _ -> new Histogram())
+				.observeNanos(nanos));
+
+		return outcome;
+	}
+
+	public static void recordProcessWait(long nanos) {
+		PROCESS_WAIT.observeNanos(nanos);
+	}
+
+	public static void recordBytesIn(long bytes) {
+		BYTES_IN.add(bytes);
+	}
+
+	public static void recordBytesOut(long bytes) {
+		BYTES_OUT.add(bytes);
+	}
+
+	/**
+	 * Records the FFmpeg runs needed to convert a video, including the ones terminated early
+	 * because the video was growing beyond the maximum file size.
+	 *
+	 * @param attempts the encodings started
+	 * @param abortedAttempts the encodings terminated early
+	 */
+	public static void recordEncodingAttempts(int attempts, int abortedAttempts) {
+		if (attempts > 0) {
+			VIDEO_ENCODINGS.increment();
+			VIDEO_ENCODING_ATTEMPTS.add(attempts);
+			ABORTED_VIDEO_ENCODING_ATTEMPTS.add(abortedAttempts);
+		}
+	}
+
+	public static void recordVideoSize(long bytes) {
+		VIDEO_BYTES.add(bytes);
+	}
+
+	/**
+	 * Counts a temp file written by the bot in the disk space used, until it's deleted.
+	 *
+	 * @param path the location of the file
+	 * @param bytes the size of the file
+	 * @see #recordTempFileDeleted(Path)
+	 */
+	public static void recordTempFile(Path path, long bytes) {
+		TEMP_FILES.put(path, bytes);
+	}
+
+	/**
+	 * Stops counting a temp file in the disk space used: files which weren't recorded are ignored.
+	 *
+	 * @param path the location of the file deleted
+	 */
+	public static void recordTempFileDeleted(Path path) {
+		TEMP_FILES.remove(path);
+	}
+
+	/**
+	 * Writes all the metrics in Prometheus text format.
+	 *
+	 * @param lanes the statistics of the lanes of the scheduler
+	 * @param runningProcesses the number of external processes running
+	 * @param usedBudget the work units taken by the external processes running
+	 * @param budget the work units the external processes are allowed to take concurrently
+	 * @return the metrics
+	 */
+	public static String scrape(Map<WorkClass, LaneStatistics> lanes, int runningProcesses, int usedBudget, int budget) {
+		var out = new StringBuilder(16 * 1024);
+
+		writeHeader(out, "stickerify_requests_total", "counter", "Requests answered, by outcome");
+		REQUESTS.forEach((outcome, count) -> writeSample(out, "stickerify_requests_total", label("outcome", outcome), count.sum()));
+
+		writeHeader(out, "stickerify_stage_duration_seconds", "histogram", "Time spent in each stage of a request");
+		STAGE_DURATIONS.forEach((key, histogram) -> histogram.writeTo(out, "stickerify_stage_duration_seconds", key.labels()));
+
+		writeHeader(out, "stickerify_lane_queued_tasks", "gauge", "Requests waiting in each lane of the scheduler");
+		lanes.forEach((lane, statistics) -> writeSample(out, "stickerify_lane_queued_tasks", laneLabel(lane), statistics.queuedTasks()));
+
+		writeHeader(out, "stickerify_lane_active_workers", "gauge", "Requests being processed in each lane of the scheduler");
+		lanes.forEach((lane, statistics) -> writeSample(out, "stickerify_lane_active_workers", laneLabel(lane), statistics.activeWorkers()));
+
+		writeHeader(out, "stickerify_lane_wait_seconds", "summary", "Time spent by requests waiting in each lane of the scheduler");
+		lanes.forEach((lane, statistics) -> {
+			writeSample(out, "stickerify_lane_wait_seconds_sum", laneLabel(lane), statistics.totalWaitNanos() / 1e9);
+			writeSample(out, "stickerify_lane_wait_seconds_count", laneLabel(lane), statistics.startedTasks());
+		});
+
+		writeHeader(out, "stickerify_processes_running", "gauge", "External processes running");
+		writeSample(out, "stickerify_processes_running", "", runningProcesses);
+
+		writeHeader(out, "stickerify_process_budget_used", "gauge", "Work units taken by the external processes running");
+		writeSample(out, "stickerify_process_budget_used", "", usedBudget);
+
+		writeHeader(out, "stickerify_process_budget", "gauge", "Work units the external processes are allowed to take concurrently");
+		writeSample(out, "stickerify_process_budget", "", budget);
+
+		writeHeader(out, "stickerify_process_wait_seconds", "histogram", "Time spent waiting for an external process to be allowed to run");
+		PROCESS_WAIT.writeTo(out, "stickerify_process_wait_seconds", "");
+
+		writeHeader(out, "stickerify_downloaded_bytes_total", "counter", "Bytes downloaded from Telegram");
+		writeSample(out, "stickerify_downloaded_bytes_total", "", BYTES_IN.sum());
+
+		writeHeader(out, "stickerify_uploaded_bytes_total", "counter", "Bytes of converted files uploaded to Telegram");
+		writeSample(out, "stickerify_uploaded_bytes_total", "", BYTES_OUT.sum());
+
+		writeHeader(out, "stickerify_video_encodings_total", "counter", "Videos encoded with FFmpeg");
+		writeSample(out, "stickerify_video_encodings_total", "", VIDEO_ENCODINGS.sum());
+
+		writeHeader(out, "stickerify_video_encoding_attempts_total", "counter", "FFmpeg runs needed to encode the videos");
+		writeSample(out, "stickerify_video_encoding_attempts_total", "", VIDEO_ENCODING_ATTEMPTS.sum());
+
+		writeHeader(out, "stickerify_video_encoding_aborted_attempts_total", "counter", "FFmpeg runs terminated because the video exceeded the maximum file size");
+		writeSample(out, "stickerify_video_encoding_aborted_attempts_total", "", ABORTED_VIDEO_ENCODING_ATTEMPTS.sum());
+
+		writeHeader(out, "stickerify_video_encoded_bytes_total", "counter", "Bytes of the videos successfully encoded");
+		writeSample(out, "stickerify_video_encoded_bytes_total", "", VIDEO_BYTES.sum());
+
+		writeHeader(out, "stickerify_temp_files_bytes", "gauge", "Disk space used by the temp files of the bot");
+		writeSample(out, "stickerify_temp_files_bytes", "", getTempFilesSize());
+
+		return out.toString();
+	}
+
+	private static long getTempFilesSize() {
+		return TEMP_FILES.values().stream().mapToLong(Long::longValue).sum();
+	}
+
+	private static void writeHeader(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	static void writeSample(StringBuilder out, String name, String labels, double value) {
+		out.append(name);
+		if (!labels.isEmpty()) {
+			out.append('{').append(labels).append('}');
+		}
+		out.append(' ');
+
+		if (value == Math.rint(value) && !Double.isInfinite(value)) {
+			out.append((long) value);
+		} else {
+			out.append(value);
+		}
+
+		out.append('\n');
+	}
+
+	private static String laneLabel(WorkClass lane) {
+		return label("lane", lane.name().toLowerCase());
+	}
+
+	private static String label(String name, String value) {
+		var escapedValue = value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+
+		return name + "=\"" + escapedValue + "\"";
+	}
+
+	private record StageKey(Stage stage, String mimeType, String outcome) {
+		private String labels() {
+			return label("stage", stage.getLabel()) + "," + label("mime_type", mimeType) + "," + label("outcome", outcome);
+		}
+	}
+
+	private MetricsHelper() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,71 @@
+package com.github.stickerifier.stickerify.metrics;
+
+import static java.net.HttpURLConnection.HTTP_BAD_METHOD;
+import static java.net.HttpURLConnection.HTTP_OK;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.Executors.newVirtualThreadPerTaskExecutor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+
+/**
+ * Embedded HTTP server exposing the metrics of the bot on {@code /metrics}.
+ */
+public final class MetricsServer implements AutoCloseable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetricsServer.class);
+	private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	private final HttpServer server;
+	private final ExecutorService executor = newVirtualThreadPerTaskExecutor();
+	private final Supplier<String> scraper;
+
+	/**
+	 * Starts the server.
+	 *
+	 * @param port the port to listen on
+	 * @param scraper the function collecting the metrics in Prometheus text format
+	 * @throws IOException if the server can't be bound to the port
+	 */
+	public MetricsServer(int port, Supplier<String> scraper) throws IOException {
+		this.scraper = scraper;
+
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.setExecutor(executor);
+		server.createContext("/metrics", this::handle);
+		server.start();
+
+		LOGGER.atInfo().log("Exposing metrics on port {}", getPort());
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (exchange) {
+			if (!"GET".equals(exchange.getRequestMethod())) {
+				exchange.sendResponseHeaders(HTTP_BAD_METHOD, -1);
+				return;
+			}
+
+			var body = scraper.get().getBytes(UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			exchange.sendResponseHeaders(HTTP_OK, body.length);
+			exchange.getResponseBody().write(body);
+		}
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.close();
+	}
+}
@@ -0,0 +1,83 @@
+package com.github.stickerifier.stickerify.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The durations of the stages of a request, together with the MIME type of its file and its outcome.
+ * <p>
+ * It is passed along with the request, so that the stages executed on other threads are recorded as well:
+ * all its methods can be called concurrently.
+ *
+ * @see MetricsHelper#startRequest()
+ * @see MetricsHelper#finishRequest(RequestMetrics)
+ */
+public final class RequestMetrics {
+
+	/**
+	 * Metrics collecting nothing, used for the work done outside a request.
+	 */
+	public static final RequestMetrics NONE = new RequestMetrics(false);
+
+	private static final String NO_MIME_TYPE = "none";
+	private static final String NO_OUTCOME = "NONE";
+
+	private final boolean enabled;
+	private final Map<Stage, Long> durations = new ConcurrentHashMap<>();
+	private volatile String mimeType = NO_MIME_TYPE;
+	private volatile String outcome = NO_OUTCOME;
+
+	RequestMetrics(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Adds the time elapsed since {@code startNanos} to the duration of the stage.
+	 *
+	 * @param stage the stage completed
+	 * @param startNanos the value of {@link System#nanoTime()} when the stage started
+	 */
+	public void recordStage(Stage stage, long startNanos) {
+		if (enabled) {
+			durations.merge(stage, System.nanoTime() - startNanos, Long::sum);
+		}
+	}
+
+	/**
+	 * Sets the MIME type of the file of the request.
+	 *
+	 * @param mimeType the MIME type detected
+	 */
+	public void recordMimeType(String mimeType) {
+		if (enabled && mimeType != null) {
+			this.mimeType = mimeType;
+		}
+	}
+
+	/**
+	 * Sets the outcome of the request.
+	 *
+	 * @param outcome the answer sent to the user
+	 */
+	public void recordOutcome(String outcome) {
+		if (enabled) {
+			this.outcome = outcome;
+		}
+	}
+
+	boolean isEnabled() {
+		return enabled;
+	}
+
+	Map<Stage, Long> getDurations() {
+		return durations;
+	}
+
+	String getMimeType() {
+		return mimeType;
+	}
+
+	String getOutcome() {
+		return outcome;
+	}
+}
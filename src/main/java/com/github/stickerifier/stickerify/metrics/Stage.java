@@ -0,0 +1,23 @@
+package com.github.stickerifier.stickerify.metrics;
+
+/**
+ * Enum class representing the stages a request goes through, whose duration is measured.
+ */
+public enum Stage {
+	GET_FILE("get_file"),
+	DOWNLOAD("download"),
+	MIME_DETECT("mime_detect"),
+	PROBE("probe"),
+	ENCODE("encode"),
+	UPLOAD("upload");
+
+	private final String label;
+
+	Stage(String label) {
+		this.label = label;
+	}
+
+	public String getLabel() {
+		return label;
+	}
+}
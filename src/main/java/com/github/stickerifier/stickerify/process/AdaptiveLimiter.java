@@ -0,0 +1,288 @@
+package com.github.stickerifier.stickerify.process;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.github.stickerifier.stickerify.cancellation.CancellationToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Budget of work units shared by the external processes, adjusting itself to the hardware it runs on.
+ * <p>
+ * Every process costs a number of units depending on how expensive it is, and runs as soon as its cost fits
+ * into the budget left by the processes already running: cheap processes are therefore allowed to run alongside
+ * expensive ones, even if another expensive process is waiting. To avoid starving the latter, once the oldest process
+ * waiting has been doing so for more than a second, the processes overtaking it can take only the budget it won't need:
+ * as soon as the ones which were already running complete, the oldest process is guaranteed to fit.
+ * A process costing more than the whole budget is run when no other process is running.
+ * <p>
+ * The size of the budget is adapted looking at the work completed in windows lasting at least one second
+ * and containing at least 20 processes: when a window ends, its throughput is compared with the one of the previous window,
+ * and the budget takes one step following the gradient of the throughput. As long as raising the budget increases
+ * the throughput, the budget keeps growing; as soon as it doesn't, because the processors are already busy
+ * and the processes only take longer, the budget is lowered, and it keeps being lowered until the throughput drops.
+ * The budget therefore settles around the amount of concurrent work completing the most units per second.
+ * <p>
+ * Only windows in which the budget was exhausted are considered, since otherwise the throughput measures
+ * the incoming load rather than the capacity of the machine.
+ */
+final class AdaptiveLimiter {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveLimiter.class);
+
+	private static final long MIN_WINDOW_NANOS = SECONDS.toNanos(1);
+	private static final long MAX_OVERTAKE_NANOS = SECONDS.toNanos(1);
+	private static final int MIN_WINDOW_COMPLETIONS = 20;
+	private static final double TOLERANCE = 0.05;
+
+	private final int minLimit;
+	private final int maxLimit;
+	private final LongSupplier clock;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition permitAvailable = lock.newCondition();
+	private final Deque<Waiter> waiters = new ArrayDeque<>();
+
+	private volatile int limit;
+	private volatile int usedBudget;
+	private volatile int inFlight;
+	private int overtakingBudget;
+	private int direction = 1;
+	private long windowStart;
+	private int windowCompletions;
+	private long windowWork;
+	private boolean windowSaturated;
+	private double previousThroughput;
+
+	AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit) {
+		this(initialLimit, minLimit, maxLimit, System::nanoTime);
+	}
+
+	AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, LongSupplier clock) {
+		if (minLimit < 1 || maxLimit < minLimit) {
+			throw new IllegalArgumentException("The limits must satisfy 1 <= minimum <= maximum");
+		}
+
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.clock = clock;
+		this.limit = Math.clamp(initialLimit, minLimit, maxLimit);
+		this.windowStart = clock.getAsLong();
+	}
+
+	/**
+	 * Waits until the cost of a new process fits into the budget, then takes it from the budget.
+	 *
+	 * @param cost the work units the process is estimated to need
+	 * @return the permit to run, to be passed back to {@link #release(Permit)} when the process completes
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	Permit acquire(int cost) throws InterruptedException {
+		return acquire(cost, CancellationToken.create());
+	}
+
+	/**
+	 * Waits until the cost of a new process fits into the budget, then takes it from the budget.
+	 * Cancelling the token wakes the waiting thread up, which then stops waiting without taking anything from the budget.
+	 *
+	 * @param cost the work units the process is estimated to need
+	 * @param token the token of the request the process belongs to
+	 * @return the permit to run, to be passed back to {@link #release(Permit)} when the process completes,
+	 * {@code null} if the token was cancelled
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	Permit acquire(int cost, CancellationToken token) throws InterruptedException {
+		try (var _ = token.onCancel(this::wakeUpWaiters)) {
+			return acquirePermit(cost, token);
+		}
+	}
+
+	private Permit acquirePermit(int cost, CancellationToken token) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			var waiter = new Waiter(Math.max(1, cost), clock.getAsLong());
+			waiters.addLast(waiter);
+			boolean overtaking;
+
+			try {
+				while (!token.isCancelled() && !canRun(waiter)) {
+					windowSaturated = true;
+					permitAvailable.await();
+				}
+
+				if (token.isCancelled()) {
+					return null;
+				}
+
+				overtaking = isOvertakingStarvingWaiter(waiter);
+			} finally {
+				waiters.remove(waiter);
+				permitAvailable.signalAll();
+			}
+
+			var permitCost = Math.min(waiter.cost(), limit);
+			usedBudget += permitCost;
+			if (overtaking) {
+				overtakingBudget += permitCost;
+			}
+
+			var permit = new Permit(permitCost, ++inFlight, usedBudget, overtaking);
+			if (usedBudget >= limit) {
+				windowSaturated = true;
+			}
+
+			return permit;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void wakeUpWaiters() {
+		lock.lock();
+		try {
+			permitAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean canRun(Waiter waiter) {
+		var cost = Math.min(waiter.cost(), limit);
+		var fits = inFlight == 0 || usedBudget + cost <= limit;
+		if (!fits || !isOvertakingStarvingWaiter(waiter)) {
+			return fits;
+		}
+
+		var oldestCost = Math.min(waiters.peekFirst().cost(), limit);
+		return overtakingBudget + cost + oldestCost <= limit;
+	}
+
+	private boolean isOvertakingStarvingWaiter(Waiter waiter) {
+		var oldest = waiters.peekFirst();
+
+		return oldest != null && oldest != waiter && clock.getAsLong() - oldest.since() >= MAX_OVERTAKE_NANOS;
+	}
+
+	/**
+	 * Gives the cost of a completed process back to the budget, adjusting the budget if the current window is over.
+	 *
+	 * @param permit the permit obtained by the process
+	 */
+	void release(Permit permit) {
+		lock.lock();
+		try {
+			returnBudget(permit);
+			windowCompletions++;
+			windowWork += permit.cost();
+
+			var now = clock.getAsLong();
+			var elapsed = now - windowStart;
+			if (elapsed >= MIN_WINDOW_NANOS && windowCompletions >= MIN_WINDOW_COMPLETIONS) {
+				endWindow(windowWork * (double) SECONDS.toNanos(1) / elapsed);
+				windowStart = now;
+				windowCompletions = 0;
+				windowWork = 0;
+				windowSaturated = false;
+			}
+
+			permitAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives the cost of a process which was never started back to the budget, without counting it as completed work.
+	 *
+	 * @param permit the permit obtained by the process
+	 */
+	void abandon(Permit permit) {
+		lock.lock();
+		try {
+			returnBudget(permit);
+			permitAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void returnBudget(Permit permit) {
+		inFlight--;
+		usedBudget -= permit.cost();
+		if (permit.overtaking()) {
+			overtakingBudget -= permit.cost();
+		}
+	}
+
+	private void endWindow(double throughput) {
+		if (!windowSaturated) {
+			previousThroughput = 0;
+			return;
+		}
+
+		if (previousThroughput > 0) {
+			var gain = throughput / previousThroughput - 1;
+			if (direction > 0) {
+				direction = gain > TOLERANCE ? 1 : -1;
+			} else {
+				direction = gain < -TOLERANCE ? 1 : -1;
+			}
+		}
+
+		previousThroughput = throughput;
+		var newLimit = Math.clamp(limit + direction, minLimit, maxLimit);
+
+		if (newLimit != limit) {
+			LOGGER.atDebug().log("Process budget changed from {} to {} units at {} units per second", limit, newLimit, String.format("%.2f", throughput));
+			limit = newLimit;
+		}
+	}
+
+	int getLimit() {
+		return limit;
+	}
+
+	int getUsedBudget() {
+		return usedBudget;
+	}
+
+	int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Data class representing the permission given to a process to run.
+	 *
+	 * @param cost the work units taken from the budget
+	 * @param runningProcesses the number of processes running, including the one just admitted
+	 * @param usedBudget the work units taken by the processes running, including the one just admitted
+	 * @param overtaking {@code true} if the process overtook another one waiting for more than a second
+	 */
+	record Permit(int cost, int runningProcesses, int usedBudget, boolean overtaking) {}
+
+	/**
+	 * A process waiting to run, compared by identity so that it can be removed from the queue.
+	 */
+	private static final class Waiter {
+		private final int cost;
+		private final long since;
+
+		Waiter(int cost, long since) {
+			this.cost = cost;
+			this.since = since;
+		}
+
+		int cost() {
+			return cost;
+		}
+
+		long since() {
+			return since;
+		}
+	}
+}
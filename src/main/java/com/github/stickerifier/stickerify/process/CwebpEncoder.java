@@ -0,0 +1,147 @@
+package com.github.stickerifier.stickerify.process;
+
+import static com.github.stickerifier.stickerify.process.ProcessHelper.IS_WINDOWS;
+import static java.lang.System.lineSeparator;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import com.github.stickerifier.stickerify.cancellation.CancellationToken;
+import com.github.stickerifier.stickerify.exception.ProcessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Encoder converting images to WebP piping them through {@code cwebp}:
+ * the pixels are streamed to its standard input as a PAM image, and the result is read from its standard output.
+ * <p>
+ * The executable is looked up in the {@code CWEBP_PATH} environment variable,
+ * then in the folder specified by the {@code com.sksamuel.scrimage.webp.binary.dir} system property,
+ * and finally in the system path.
+ */
+public final class CwebpEncoder {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(CwebpEncoder.class);
+
+	private static final String CWEBP = IS_WINDOWS ? "cwebp.exe" : "cwebp";
+	private static final String[] FIND_CWEBP = { IS_WINDOWS ? "where" : "which", "cwebp" };
+	private static final String CWEBP_LOCATION = locateCwebp();
+
+	/**
+	 * Checks if the {@code cwebp} executable has been found.
+	 *
+	 * @return {@code true} if images can be encoded
+	 */
+	public static boolean isAvailable() {
+		return CWEBP_LOCATION != null;
+	}
+
+	/**
+	 * Encodes passed-in image as WebP.
+	 *
+	 * @param image the image to encode
+	 * @param encoding the settings of the encoding
+	 * @param token the token of the request the image belongs to, terminating the encoder when cancelled
+	 * @return the bytes of the encoded image
+	 * @throws ProcessException if the image couldn't be encoded
+	 */
+	public static byte[] encode(BufferedImage image, WebpEncoding encoding, CancellationToken token) throws ProcessException {
+		var options = ProcessOptions.defaults()
+				.costing(ProcessHelper.estimateCost(image.getWidth() * (double) image.getHeight() / 1_000_000))
+				.cancelledBy(token);
+
+		return ProcessHelper.executeCommand(threads -> buildCommand(encoding, threads), stream -> writePam(image, stream), options);
+	}
+
+	private static String[] buildCommand(WebpEncoding encoding, int threads) {
+		var command = new ArrayList<String>();
+		command.add(CWEBP_LOCATION);
+		command.add("-quiet");
+
+		if (threads > 1) {
+			command.add("-mt");
+		}
+
+		if (encoding.lossless()) {
+			command.add("-z");
+		} else {
+			command.add("-q");
+		}
+		command.add(String.valueOf(encoding.level()));
+
+		command.add("-o");
+		command.add("-");
+		command.add("--");
+		command.add("-");
+
+		return command.toArray(String[]::new);
+	}
+
+	/**
+	 * Writes the image in the PAM format, using RGBA tuples.
+	 *
+	 * @param image the image to write
+	 * @param stream the destination of the image
+	 * @throws IOException if an error occurs writing the image
+	 * @see <a href="https://netpbm.sourceforge.net/doc/pam.html">PAM format specification</a>
+	 */
+	private static void writePam(BufferedImage image, OutputStream stream) throws IOException {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		var header = "P7\nWIDTH " + width + "\nHEIGHT " + height + "\nDEPTH 4\nMAXVAL 255\nTUPLTYPE RGB_ALPHA\nENDHDR\n";
+
+		var output = new BufferedOutputStream(stream, 64 * 1024);
+		output.write(header.getBytes(US_ASCII));
+
+		var row = new int[width];
+		var rowBytes = new byte[width * 4];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+
+			for (int x = 0; x < width; x++) {
+				int pixel = row[x];
+				rowBytes[x * 4] = (byte) (pixel >> 16);
+				rowBytes[x * 4 + 1] = (byte) (pixel >> 8);
+				rowBytes[x * 4 + 2] = (byte) pixel;
+				rowBytes[x * 4 + 3] = (byte) (pixel >>> 24);
+			}
+
+			output.write(rowBytes);
+		}
+
+		output.flush();
+	}
+
+	private static String locateCwebp() {
+		var location = System.getenv("CWEBP_PATH");
+		if (location != null && !location.isBlank()) {
+			return location;
+		}
+
+		var binaryDirectory = System.getProperty("com.sksamuel.scrimage.webp.binary.dir");
+		if (binaryDirectory != null && Files.isExecutable(Path.of(binaryDirectory, CWEBP))) {
+			return Path.of(binaryDirectory, CWEBP).toString();
+		}
+
+		try {
+			location = ProcessHelper.executeCommand(FIND_CWEBP).split(lineSeparator())[0];
+			LOGGER.atInfo().log("cwebp is installed at {}", location);
+
+			return location;
+		} catch (ProcessException _) {
+			LOGGER.atInfo().log("Unable to find cwebp in the system, images will be encoded by Scrimage");
+
+			return null;
+		}
+	}
+
+	private CwebpEncoder() {
+		throw new UnsupportedOperationException();
+	}
+}
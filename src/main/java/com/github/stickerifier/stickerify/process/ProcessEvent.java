@@ -0,0 +1,58 @@
+package com.github.stickerifier.stickerify.process;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event spanning the execution of an external process, including the time spent waiting to be allowed to run.
+ */
+@Name("com.github.stickerifier.stickerify.Process")
+@Label("External Process")
+@Category("Stickerify")
+@Description("Execution of an external command")
+@StackTrace(false)
+final class ProcessEvent extends Event {
+
+	@Label("Command")
+	String command;
+
+	@Label("Semaphore Wait")
+	@Description("Time spent waiting for the cost of the process to fit into the budget")
+	@Timespan
+	long semaphoreWait;
+
+	@Label("Cost")
+	@Description("Work units taken from the budget shared by the processes")
+	int cost;
+
+	@Label("Exit Code")
+	@Description("Exit code of the process, -1 if it didn't start or didn't exit in time")
+	int exitCode = -1;
+
+	/**
+	 * Completes the event with the outcome of the process and commits it, if the event is enabled.
+	 *
+	 * @param command the command executed, {@code null} if the process was never allowed to run
+	 * @param process the process, {@code null} if it couldn't be started
+	 */
+	void end(String[] command, Process process) {
+		if (!shouldCommit()) {
+			return;
+		}
+
+		if (command != null) {
+			this.command = String.join(" ", command);
+		}
+
+		if (process != null && !process.isAlive()) {
+			exitCode = process.exitValue();
+		}
+
+		commit();
+	}
+}
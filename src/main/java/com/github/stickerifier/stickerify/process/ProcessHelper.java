@@ -1,24 +1,41 @@
 package com.github.stickerifier.stickerify.process;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
-import static java.util.concurrent.TimeUnit.MINUTES;
 
 import com.github.stickerifier.stickerify.exception.ProcessException;
+import com.github.stickerifier.stickerify.metrics.MetricsHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.concurrent.Semaphore;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
 
 public final class ProcessHelper {
 
+	private static final Logger LOGGER = LoggerFactory.getLogger(ProcessHelper.class);
+
 	static final boolean IS_WINDOWS = System.getProperty("os.name").toLowerCase().contains("windows");
-	private static final int MAX_CONCURRENT_PROCESSES = IS_WINDOWS ? 4 : 5;
-	private static final Semaphore SEMAPHORE = new Semaphore(MAX_CONCURRENT_PROCESSES);
+	private static final int INITIAL_PROCESS_BUDGET = IS_WINDOWS ? 4 : 5;
+	private static final AdaptiveLimiter LIMITER = new AdaptiveLimiter(INITIAL_PROCESS_BUDGET,
+			getBudgetLimit("MIN_PROCESS_BUDGET", 2),
+			getBudgetLimit("MAX_PROCESS_BUDGET", Math.max(INITIAL_PROCESS_BUDGET, 4 * Runtime.getRuntime().availableProcessors())));
+	private static final double MEGAPIXELS_PER_WORK_UNIT = 50;
+	private static final int MAX_COST = 8;
+	private static final ExecutorService VIRTUAL_THREAD_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+	private static final Set<RunningProcess> PROCESSES = ConcurrentHashMap.newKeySet();
+	private static volatile boolean shuttingDown;
 
 	/**
 	 * Executes passed-in command and ensures it completed successfully.
-	 * Based on the operating system, the method limits the number of processes running concurrently:
-	 * on Windows they will be at most 4, on every other system they will be at most 5.
+	 * The processes running concurrently share a budget of work units, each process taking as many as its cost:
+	 * the budget starts at 4 units on Windows and at 5 on every other system, so that as many cheap processes run
+	 * as before costs were introduced, then adapts to the throughput of the machine between the values
+	 * of the {@code MIN_PROCESS_BUDGET} and {@code MAX_PROCESS_BUDGET} environment variables,
+	 * by default 2 and four times the available processors.
 	 *
 	 * @param command the command to be executed
 	 * @return the output of the command
@@ -30,54 +47,267 @@ public final class ProcessHelper {
 	 * </ul>
 	 */
 	public static String executeCommand(final String[] command) throws ProcessException {
-		Process process = null;
+		return executeCommand(_ -> command);
+	}
+
+	/**
+	 * Executes the command built by {@code commandProvider} and ensures it completed successfully.
+	 * The command is built once the process is allowed to run, passing to the provider the number of threads
+	 * it should use: the available processors are split evenly among the processes currently running,
+	 * so that a process running alone can use the whole machine.
+	 *
+	 * @param commandProvider the function building the command given the number of threads it can use
+	 * @return the output of the command
+	 * @throws ProcessException either if:
+	 * <ul>
+	 *     <li>the command was unsuccessful
+	 *     <li>the waiting time elapsed
+	 *     <li>an unexpected failure happened running the command
+	 * </ul>
+	 * @see #executeCommand(String[])
+	 */
+	public static String executeCommand(final IntFunction<String[]> commandProvider) throws ProcessException {
+		return executeCommand(commandProvider, ProcessOptions.defaults());
+	}
+
+	/**
+	 * Executes the command built by {@code commandProvider} with passed-in options and ensures it completed successfully.
+	 *
+	 * @param commandProvider the function building the command given the number of threads it can use
+	 * @param options the timeout of the command and how to read its output
+	 * @return the output of the command, or its errors if it had no output
+	 * @throws ProcessException either if:
+	 * <ul>
+	 *     <li>the command was unsuccessful
+	 *     <li>the waiting time elapsed
+	 *     <li>an unexpected failure happened running the command
+	 * </ul>
+	 * @see #executeCommand(IntFunction)
+	 */
+	public static String executeCommand(final IntFunction<String[]> commandProvider, final ProcessOptions options) throws ProcessException {
+		var result = start(commandProvider, null, options).await();
+		var output = new String(result.output(), UTF_8);
+
+		return (output.isEmpty() ? result.errors() : output).trim();
+	}
+
+	/**
+	 * Executes the command built by {@code commandProvider}, streaming {@code input} to its standard input
+	 * while its standard output is being read, so that no data has to be written to disk.
+	 * The process is subject to the same concurrency limit and timeout as {@link #executeCommand(IntFunction)}.
+	 *
+	 * @param commandProvider the function building the command given the number of threads it can use
+	 * @param input the data to write to the standard input of the process
+	 * @return the bytes written by the process to its standard output
+	 * @throws ProcessException either if:
+	 * <ul>
+	 *     <li>the command was unsuccessful
+	 *     <li>the waiting time elapsed
+	 *     <li>an unexpected failure happened running the command
+	 * </ul>
+	 */
+	public static byte[] executeCommand(final IntFunction<String[]> commandProvider, final ProcessInput input) throws ProcessException {
+		return executeCommand(commandProvider, input, ProcessOptions.defaults());
+	}
+
+	/**
+	 * Executes the command built by {@code commandProvider} with passed-in options, streaming {@code input}
+	 * to its standard input while its standard output is being read.
+	 *
+	 * @param commandProvider the function building the command given the number of threads it can use
+	 * @param input the data to write to the standard input of the process
+	 * @param options the timeout and the cost of the command
+	 * @return the bytes written by the process to its standard output
+	 * @throws ProcessException either if:
+	 * <ul>
+	 *     <li>the command was unsuccessful
+	 *     <li>the waiting time elapsed
+	 *     <li>an unexpected failure happened running the command
+	 * </ul>
+	 * @see #executeCommand(IntFunction, ProcessInput)
+	 */
+	public static byte[] executeCommand(final IntFunction<String[]> commandProvider, final ProcessInput input, final ProcessOptions options) throws ProcessException {
+		return start(commandProvider, input, options).await().output();
+	}
+
+	/**
+	 * Starts the command built by {@code commandProvider} without waiting for it to complete,
+	 * once its cost fits into the budget of work units.
+	 * The units are given back when the process exits, whatever its outcome.
+	 *
+	 * @param commandProvider the function building the command given the number of threads it can use
+	 * @param input the data to write to the standard input of the process, {@code null} if it has no input
+	 * @param options the timeout of the command and how to read its output
+	 * @return the handle to the process
+	 * @throws ProcessException if the process couldn't be started
+	 */
+	public static RunningProcess start(final IntFunction<String[]> commandProvider, final ProcessInput input, final ProcessOptions options) throws ProcessException {
+		var event = new ProcessEvent();
+		event.begin();
+		String[] command = null;
+		AdaptiveLimiter.Permit permit = null;
+		var started = false;
 
 		try {
-			SEMAPHORE.acquire();
-			process = new ProcessBuilder(command).start();
-			var processExited = process.waitFor(1, MINUTES);
-
-			if (!processExited || process.exitValue() != 0) {
-				var reason = processExited ? "successfully" : "in time";
-				var output = readStream(process.getErrorStream());
-				throw new ProcessException("The command {} couldn't complete {}\n{}", command[0], reason, output);
+			permit = admit(event, options);
+
+			command = buildCommand(commandProvider, permit);
+			var process = launch(command);
+			var runningProcess = new RunningProcess(command, process, input, options, VIRTUAL_THREAD_EXECUTOR);
+			started = true;
+
+			PROCESSES.add(runningProcess);
+			var cancellation = options.token() == null ? null : options.token().onCancel(runningProcess::cancel);
+			var executedCommand = command;
+			var acquiredPermit = permit;
+			runningProcess.completion().whenComplete((_, _) -> {
+				event.end(executedCommand, process);
+				PROCESSES.remove(runningProcess);
+				LIMITER.release(acquiredPermit);
+				if (cancellation != null) {
+					cancellation.close();
+				}
+			});
+
+			if (shuttingDown) {
+				runningProcess.cancel();
 			}
 
-			return readProcessOutput(process);
+			return runningProcess;
 		} catch (IOException | InterruptedException e) {
 			throw new ProcessException(e);
 		} finally {
-			SEMAPHORE.release();
-			if (process != null) {
-				process.destroy();
+			if (!started) {
+				event.end(command, null);
+				if (permit != null) {
+					LIMITER.abandon(permit);
+				}
 			}
 		}
 	}
 
 	/**
-	 * Processes the content of the stream and retrieves its UTF-8 string representation.
+	 * Waits until a process is allowed to run.
+	 * If the request the process belongs to is cancelled in the meantime, the wait stops.
 	 *
-	 * @param stream the stream to be decoded
-	 * @return the UTF-8 representation of passed-in stream
-	 * @throws IOException if an error occurs reading stream's bytes
+	 * @param event the event recording the time spent waiting
+	 * @param options the cost of the process and the token of its request
+	 * @return the permit to run
+	 * @throws InterruptedException if the thread was interrupted while waiting, or if the request was cancelled
 	 */
-	private static String readStream(InputStream stream) throws IOException {
-		return new String(stream.readAllBytes(), UTF_8);
+	private static AdaptiveLimiter.Permit admit(ProcessEvent event, ProcessOptions options) throws InterruptedException {
+		if (shuttingDown) {
+			throw new InterruptedException("No more processes can be started, the bot is shutting down");
+		}
+
+		var waitStart = System.nanoTime();
+		var permit = acquire(options);
+		var waitNanos = System.nanoTime() - waitStart;
+		MetricsHelper.recordProcessWait(waitNanos);
+		event.semaphoreWait = waitNanos;
+		event.cost = permit.cost();
+
+		return permit;
+	}
+
+	private static AdaptiveLimiter.Permit acquire(ProcessOptions options) throws InterruptedException {
+		var token = options.token();
+		if (token == null) {
+			return LIMITER.acquire(options.cost());
+		}
+
+		var permit = LIMITER.acquire(options.cost(), token);
+		if (permit == null) {
+			throw new InterruptedException("The process was not started because " + token.getReason());
+		}
+
+		return permit;
+	}
+
+	private static String[] buildCommand(IntFunction<String[]> commandProvider, AdaptiveLimiter.Permit permit) {
+		int threads = computeThreads(permit);
+		var command = commandProvider.apply(threads);
+		LOGGER.atDebug().log("Executing {} with {} threads, {} processes running", command[0], threads, permit.runningProcesses());
+
+		return command;
+	}
+
+	private static Process launch(String[] command) throws IOException {
+		return new ProcessBuilder(command).start();
 	}
 
 	/**
-	 * Reads the content of the input stream of the process.
-	 * If the input stream is empty, the content of the error stream is returned.
+	 * Prevents new processes from being started and forcibly terminates the ones running, together with their children.
 	 *
-	 * @param process the process
-	 * @return the output of the process
-	 * @throws IOException if an error occurs reading stream's bytes
+	 * @return the number of processes terminated
 	 */
-	private static String readProcessOutput(Process process) throws IOException {
-		var inputStream = readStream(process.getInputStream());
-		var output = inputStream.isEmpty() ? readStream(process.getErrorStream()) : inputStream;
+	public static int destroyAll() {
+		shuttingDown = true;
 
-		return output.trim();
+		var destroyed = 0;
+		for (var process : PROCESSES) {
+			if (process.isAlive()) {
+				process.cancel();
+				destroyed++;
+			}
+		}
+
+		return destroyed;
+	}
+
+	/**
+	 * Estimates the work units needed by a process from the number of pixels it has to handle:
+	 * a unit corresponds to 50 megapixels, so that any image and a short video at sticker resolution cost one unit,
+	 * while a 3 seconds 4K video costs the maximum of 8 units.
+	 *
+	 * @param megapixels the millions of pixels the process has to decode or encode, summed over all the frames
+	 * @return the cost of the process, between 1 and 8
+	 */
+	public static int estimateCost(double megapixels) {
+		return (int) Math.clamp(Math.ceil(megapixels / MEGAPIXELS_PER_WORK_UNIT), 1, MAX_COST);
+	}
+
+	/**
+	 * Retrieves the current budget of work units shared by the processes running concurrently, as adapted to the machine.
+	 *
+	 * @return the size of the budget
+	 */
+	public static int getProcessBudget() {
+		return LIMITER.getLimit();
+	}
+
+	/**
+	 * Retrieves the work units taken by the processes currently running.
+	 *
+	 * @return the used budget
+	 */
+	public static int getUsedProcessBudget() {
+		return LIMITER.getUsedBudget();
+	}
+
+	/**
+	 * Retrieves the number of processes currently running.
+	 *
+	 * @return the number of running processes
+	 */
+	public static int getRunningProcesses() {
+		return LIMITER.getInFlight();
+	}
+
+	private static int getBudgetLimit(String name, int defaultValue) {
+		var value = System.getenv(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	/**
+	 * Splits the available processors among the running processes in proportion to their cost,
+	 * so that an expensive encoding gets more threads than a cheap one running alongside it.
+	 *
+	 * @param permit the permit of the process about to start
+	 * @return the number of threads the process should use, at least 1
+	 */
+	private static int computeThreads(AdaptiveLimiter.Permit permit) {
+		return Math.max(1, Runtime.getRuntime().availableProcessors() * permit.cost() / permit.usedBudget());
 	}
 
 	private ProcessHelper() {
@@ -0,0 +1,19 @@
+package com.github.stickerifier.stickerify.process;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Represents the data to write to the standard input of a process.
+ */
+@FunctionalInterface
+public interface ProcessInput {
+
+	/**
+	 * Writes the data to passed-in stream, which will be closed once the method returns.
+	 *
+	 * @param stream the standard input of the process
+	 * @throws IOException if an error occurs writing the data
+	 */
+	void writeTo(OutputStream stream) throws IOException;
+}
@@ -0,0 +1,62 @@
+package com.github.stickerifier.stickerify.process;
+
+import com.github.stickerifier.stickerify.cancellation.CancellationToken;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * Data class representing the settings of the execution of an external process.
+ *
+ * @param timeout the maximum time the process can run for, after which it's terminated together with its children
+ * @param maxOutputSize the maximum number of bytes the process can write to its standard output
+ * @param progressListener the listener notified of FFmpeg's progress, {@code null} if the output of the process is not a progress report
+ * @param cost the work units the process is estimated to need, see {@link ProcessHelper#estimateCost(double)}
+ * @param token the token of the request the process belongs to, terminating the process when cancelled;
+ * {@code null} if the process can't be cancelled
+ */
+public record ProcessOptions(Duration timeout, int maxOutputSize, Consumer<ProcessProgress> progressListener, int cost, CancellationToken token) {
+
+	private static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(1);
+	private static final int DEFAULT_MAX_OUTPUT_SIZE = 64 * 1024 * 1024;
+
+	public static ProcessOptions defaults() {
+		return withTimeout(DEFAULT_TIMEOUT);
+	}
+
+	public static ProcessOptions withTimeout(Duration timeout) {
+		return new ProcessOptions(timeout, DEFAULT_MAX_OUTPUT_SIZE, null, 1, null);
+	}
+
+	/**
+	 * Creates the settings for an FFmpeg command whose standard output is the progress report
+	 * requested with {@code -progress pipe:1}.
+	 *
+	 * @param timeout the maximum time the process can run for
+	 * @param progressListener the listener notified every time FFmpeg reports its progress
+	 * @return the settings
+	 */
+	public static ProcessOptions withProgress(Duration timeout, Consumer<ProcessProgress> progressListener) {
+		return new ProcessOptions(timeout, DEFAULT_MAX_OUTPUT_SIZE, progressListener, 1, null);
+	}
+
+	/**
+	 * Creates a copy of these settings for a process needing passed-in work units.
+	 *
+	 * @param cost the work units the process is estimated to need
+	 * @return the settings
+	 */
+	public ProcessOptions costing(int cost) {
+		return new ProcessOptions(timeout, maxOutputSize, progressListener, cost, token);
+	}
+
+	/**
+	 * Creates a copy of these settings for a process belonging to the request identified by passed-in token.
+	 *
+	 * @param token the token of the request
+	 * @return the settings
+	 */
+	public ProcessOptions cancelledBy(CancellationToken token) {
+		return new ProcessOptions(timeout, maxOutputSize, progressListener, cost, token);
+	}
+}
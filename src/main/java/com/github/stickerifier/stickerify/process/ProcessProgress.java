@@ -0,0 +1,43 @@
+package com.github.stickerifier.stickerify.process;
+
+import java.util.Map;
+
+/**
+ * Data class representing a progress report written by FFmpeg when run with the {@code -progress} option.
+ *
+ * @param frame the number of frames encoded so far
+ * @param outTimeMicros the timestamp of the output reached so far, in microseconds
+ * @param totalSize the number of bytes written so far
+ * @param speed the encoding speed relative to real time, such as {@code 1.5x}
+ * @param finished {@code true} if this is the last report
+ */
+public record ProcessProgress(long frame, long outTimeMicros, long totalSize, String speed, boolean finished) {
+
+	/**
+	 * Creates the progress from the key-value pairs of a report, ignoring values which are missing or not available.
+	 *
+	 * @param values the values of the report
+	 * @return the progress
+	 */
+	static ProcessProgress of(Map<String, String> values) {
+		return new ProcessProgress(
+				parseLong(values.get("frame")),
+				parseLong(values.get("out_time_us")),
+				parseLong(values.get("total_size")),
+				values.getOrDefault("speed", "N/A").trim(),
+				"end".equals(values.get("progress"))
+		);
+	}
+
+	private static long parseLong(String value) {
+		if (value == null) {
+			return 0;
+		}
+
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException _) {
+			return 0;
+		}
+	}
+}
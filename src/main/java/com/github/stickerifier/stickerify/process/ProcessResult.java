@@ -0,0 +1,14 @@
+package com.github.stickerifier.stickerify.process;
+
+/**
+ * Data class representing the outcome of an external process.
+ *
+ * @param exitCode the exit code of the process
+ * @param output the bytes written to the standard output, empty if it was a progress report
+ * @param errors the text written to the standard error, truncated if too long
+ */
+public record ProcessResult(int exitCode, byte[] output, String errors) {
+	public boolean isSuccessful() {
+		return exitCode == 0;
+	}
+}
@@ -0,0 +1,279 @@
+package com.github.stickerifier.stickerify.process;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import com.github.stickerifier.stickerify.exception.ProcessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+/**
+ * Handle to an external process started by {@link ProcessHelper}.
+ * <p>
+ * Both the standard output and the standard error are drained concurrently while the process runs,
+ * so that a process writing a lot can never block on a full pipe: the output is kept up to the size configured
+ * in the {@link ProcessOptions}, the errors up to 64 KB.
+ * The result is available through a future completing once the process exited and its streams were fully read;
+ * cancelling the future, or letting the timeout elapse, terminates the process together with its children.
+ */
+public final class RunningProcess {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(RunningProcess.class);
+
+	private static final int MAX_ERRORS_SIZE = 64 * 1024;
+
+	private final String[] command;
+	private final Process process;
+	private final CompletableFuture<Drained> errorsReader;
+	private final CompletableFuture<Void> completion;
+	private final CompletableFuture<ProcessResult> result;
+
+	RunningProcess(String[] command, Process process, ProcessInput input, ProcessOptions options, Executor executor) {
+		this.command = command;
+		this.process = process;
+
+		var inputWriter = CompletableFuture.supplyAsync(() -> writeInput(input), executor);
+		var outputReader = options.progressListener() == null
+				? CompletableFuture.supplyAsync(() -> drain(process.getInputStream(), options.maxOutputSize()), executor)
+				: CompletableFuture.supplyAsync(() -> readProgress(process.getInputStream(), options.progressListener()), executor);
+		errorsReader = CompletableFuture.supplyAsync(() -> drain(process.getErrorStream(), MAX_ERRORS_SIZE), executor);
+
+		completion = CompletableFuture.allOf(process.onExit(), inputWriter, outputReader, errorsReader);
+		result = completion.thenApply(_ -> toResult(inputWriter.join(), outputReader.join(), errorsReader.join(), options))
+				.orTimeout(options.timeout().toMillis(), MILLISECONDS);
+		result.whenComplete((_, e) -> {
+			if (e != null) {
+				destroyTree();
+			}
+		});
+	}
+
+	/**
+	 * Retrieves the future completing with the result of the process.
+	 * The future completes exceptionally with a {@link TimeoutException} if the process didn't exit in time,
+	 * and cancelling it terminates the process.
+	 *
+	 * @return the result of the process
+	 */
+	public CompletableFuture<ProcessResult> onExit() {
+		return result;
+	}
+
+	/**
+	 * Waits for the process to exit and ensures it completed successfully.
+	 * If the waiting thread is interrupted, the process is terminated.
+	 *
+	 * @return the result of the process
+	 * @throws ProcessException either if:
+	 * <ul>
+	 *     <li>the command was unsuccessful
+	 *     <li>the waiting time elapsed
+	 *     <li>the process was cancelled
+	 *     <li>an unexpected failure happened running the command
+	 * </ul>
+	 */
+	public ProcessResult await() throws ProcessException {
+		try {
+			var processResult = result.get();
+
+			if (!processResult.isSuccessful()) {
+				throw new ProcessException("The command {} couldn't complete successfully\n{}", command[0], processResult.errors());
+			}
+
+			return processResult;
+		} catch (InterruptedException e) {
+			cancel();
+			throw new ProcessException(e);
+		} catch (CancellationException _) {
+			throw new ProcessException("The command {} was cancelled", command[0]);
+		} catch (ExecutionException e) {
+			throw switch (e.getCause()) {
+				case TimeoutException _ -> new ProcessException("The command {} couldn't complete in time\n{}", command[0], awaitErrors());
+				case ProcessException processException -> processException;
+				case UncheckedIOException ioException -> new ProcessException(ioException.getCause());
+				case Throwable cause -> new ProcessException(cause);
+			};
+		}
+	}
+
+	/**
+	 * Terminates the process together with its children, if it's still running.
+	 */
+	public void cancel() {
+		result.cancel(false);
+		destroyTree();
+	}
+
+	public boolean isAlive() {
+		return process.isAlive();
+	}
+
+	public long pid() {
+		return process.pid();
+	}
+
+	/**
+	 * Retrieves the future completing once the process exited and its streams were closed,
+	 * regardless of the outcome of the process.
+	 *
+	 * @return the future signalling the end of the process
+	 */
+	CompletableFuture<Void> completion() {
+		return completion.exceptionally(_ -> null);
+	}
+
+	void destroyTree() {
+		process.descendants().forEach(ProcessHandle::destroyForcibly);
+		process.destroyForcibly();
+	}
+
+	private ProcessResult toResult(IOException inputError, Drained output, Drained errors, ProcessOptions options) {
+		var exitCode = process.exitValue();
+
+		if (exitCode == 0 && output.truncated()) {
+			throw new CompletionException(new ProcessException("The command {} wrote more than {} bytes", command[0], options.maxOutputSize()));
+		}
+
+		if (exitCode == 0 && inputError != null) {
+			throw new CompletionException(new ProcessException(inputError));
+		}
+
+		return new ProcessResult(exitCode, output.bytes(), errors.text());
+	}
+
+	/**
+	 * Writes the input to the process and closes its standard input.
+	 * Any error is returned rather than thrown, since a process failing early stops reading its input:
+	 * in that case, the error to report is the one written by the process.
+	 *
+	 * @param input the data to write, {@code null} if the process has no input
+	 * @return the error occurred writing the input, {@code null} if it was written successfully
+	 */
+	private IOException writeInput(ProcessInput input) {
+		try (var stream = process.getOutputStream()) {
+			if (input != null) {
+				input.writeTo(stream);
+			}
+
+			return null;
+		} catch (IOException e) {
+			return e;
+		}
+	}
+
+	/**
+	 * Reads the whole stream, keeping at most {@code limit} bytes.
+	 *
+	 * @param stream the stream to read
+	 * @param limit the maximum number of bytes to keep
+	 * @return the bytes read
+	 */
+	private static Drained drain(InputStream stream, int limit) {
+		var buffer = new ByteArrayOutputStream();
+		var chunk = new byte[8192];
+		var truncated = false;
+
+		try (stream) {
+			int read;
+			while ((read = stream.read(chunk)) != -1) {
+				int kept = Math.min(read, limit - buffer.size());
+				buffer.write(chunk, 0, kept);
+				truncated |= kept < read;
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return new Drained(buffer.toByteArray(), truncated);
+	}
+
+	/**
+	 * Reads the progress report FFmpeg writes as {@code key=value} lines, each report ending with the {@code progress} key,
+	 * and notifies the listener of every one of them.
+	 *
+	 * @param stream the stream to read
+	 * @param listener the listener to notify
+	 * @return an empty output
+	 */
+	private static Drained readProgress(InputStream stream, Consumer<ProcessProgress> listener) {
+		var values = new HashMap<String, String>();
+
+		try (var reader = new BufferedReader(new InputStreamReader(stream, UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				var separator = line.indexOf('=');
+				if (separator == -1) {
+					continue;
+				}
+
+				var key = line.substring(0, separator);
+				values.put(key, line.substring(separator + 1));
+
+				if ("progress".equals(key)) {
+					notify(listener, ProcessProgress.of(values));
+					values.clear();
+				}
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return new Drained(new byte[0], false);
+	}
+
+	/**
+	 * Notifies the listener, making sure the report keeps being read even if the listener fails.
+	 */
+	private static void notify(Consumer<ProcessProgress> listener, ProcessProgress progress) {
+		try {
+			listener.accept(progress);
+		} catch (RuntimeException e) {
+			LOGGER.atDebug().setCause(e).log("The progress listener failed");
+		}
+	}
+
+	/**
+	 * Retrieves the errors written by a process which has just been terminated, waiting for its stream to be closed.
+	 *
+	 * @return the errors written by the process, or an empty string if they couldn't be read
+	 */
+	private String awaitErrors() {
+		try {
+			return errorsReader.get(1, SECONDS).text();
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+			return "";
+		} catch (ExecutionException | TimeoutException _) {
+			return "";
+		}
+	}
+
+	/**
+	 * Convenience record to group the bytes read from a stream.
+	 *
+	 * @param bytes the bytes kept
+	 * @param truncated {@code true} if the stream contained more bytes than the ones kept
+	 */
+	private record Drained(byte[] bytes, boolean truncated) {
+		String text() {
+			var text = new String(bytes, UTF_8);
+			return truncated ? text + "\n[...]" : text;
+		}
+	}
+}
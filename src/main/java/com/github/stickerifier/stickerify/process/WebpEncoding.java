@@ -0,0 +1,17 @@
+package com.github.stickerifier.stickerify.process;
+
+/**
+ * Data class representing the settings of a WebP encoding.
+ *
+ * @param lossless {@code true} if the image has to be encoded losslessly
+ * @param level the compression level (0-9) for lossless encodings, the quality (0-100) for lossy ones
+ */
+public record WebpEncoding(boolean lossless, int level) {
+	public static WebpEncoding lossless(int level) {
+		return new WebpEncoding(true, level);
+	}
+
+	public static WebpEncoding lossy(int quality) {
+		return new WebpEncoding(false, quality);
+	}
+}
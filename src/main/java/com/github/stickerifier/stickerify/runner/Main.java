@@ -4,6 +4,8 @@ import com.github.stickerifier.stickerify.bot.Stickerify;
 
 public class Main {
 	public static void main(String[] args) {
-		new Stickerify();
+		var stickerify = new Stickerify();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(stickerify::close, "Shutdown"));
 	}
 }
@@ -0,0 +1,19 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+/**
+ * Enum class representing the outcome of scheduling a request.
+ */
+public enum Admission {
+	/**
+	 * The request was queued and it will be answered.
+	 */
+	ADMITTED,
+	/**
+	 * The scheduler is at capacity: the request should be received again later.
+	 */
+	REFUSED,
+	/**
+	 * The user already has too much work pending: the request is dropped without delaying anyone else's.
+	 */
+	USER_LIMIT_REACHED
+}
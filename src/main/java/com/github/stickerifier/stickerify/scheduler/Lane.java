@@ -0,0 +1,285 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Queue of tasks of the same {@link WorkClass}, processed by the workers reserved to the lane
+ * and by the ones it borrows from the {@link SharedWorkers} when its own are all busy.
+ * Workers are started on demand and keep pulling tasks until the queue is empty.
+ * <p>
+ * Tasks are queued per user and picked in round-robin across the users having pending tasks,
+ * skipping the ones which ran out of tokens in the {@link UserThrottle}.
+ */
+final class Lane {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(Lane.class);
+
+	private final WorkClass workClass;
+	private final int reservedWorkers;
+	private final SharedWorkers sharedWorkers;
+	private final Executor workerExecutor;
+	private final UserThrottle throttle;
+	private final Map<Long, Queue<QueuedTask>> userQueues = new HashMap<>();
+	private final Deque<Long> pendingUsers = new ArrayDeque<>();
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition tasksAvailable = lock.newCondition();
+	private int queuedTasks;
+	private int activeWorkers;
+	private int borrowedWorkers;
+
+	private final LongAdder startedTasks = new LongAdder();
+	private final LongAdder completedTasks = new LongAdder();
+	private final LongAdder totalWaitNanos = new LongAdder();
+	private final AtomicLong maxWaitNanos = new AtomicLong();
+
+	Lane(WorkClass workClass, int reservedWorkers, SharedWorkers sharedWorkers, Executor workerExecutor, UserThrottle throttle) {
+		this.workClass = workClass;
+		this.reservedWorkers = reservedWorkers;
+		this.sharedWorkers = sharedWorkers;
+		this.workerExecutor = workerExecutor;
+		this.throttle = throttle;
+	}
+
+	void submit(Long userId, Runnable task) {
+		boolean startWorker;
+
+		lock.lock();
+		try {
+			userQueues.computeIfAbsent(userId, _ -> {
+				pendingUsers.addLast(userId);
+				return new ArrayDeque<>();
+			}).add(new QueuedTask(task, System.nanoTime()));
+			queuedTasks++;
+			tasksAvailable.signal();
+
+			startWorker = tryAddWorker();
+		} finally {
+			lock.unlock();
+		}
+
+		if (startWorker) {
+			startWorker();
+		}
+	}
+
+	private void startWorker() {
+		try {
+			workerExecutor.execute(this::work);
+		} catch (RejectedExecutionException e) {
+			lock.lock();
+			try {
+				removeWorker();
+			} finally {
+				lock.unlock();
+			}
+
+			throw e;
+		}
+	}
+
+	/**
+	 * Counts a new worker, either one of the reserved ones or one borrowed from the shared workers.
+	 * Must be called holding the lock.
+	 *
+	 * @return {@code true} if a new worker can be started
+	 */
+	private boolean tryAddWorker() {
+		if (activeWorkers < reservedWorkers) {
+			activeWorkers++;
+			return true;
+		}
+
+		if (sharedWorkers.tryAcquire()) {
+			activeWorkers++;
+			borrowedWorkers++;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Stops counting a worker, giving it back to the shared workers if it was borrowed.
+	 * Must be called holding the lock.
+	 */
+	private void removeWorker() {
+		activeWorkers--;
+
+		if (borrowedWorkers > 0) {
+			borrowedWorkers--;
+			sharedWorkers.release();
+		}
+	}
+
+	/**
+	 * Runs the queued tasks until the queue is empty.
+	 * If the worker is interrupted while tasks are still queued, it hands them over to a new worker before exiting,
+	 * so that they aren't left waiting for the next submission.
+	 */
+	private void work() {
+		while (true) {
+			QueuedTask queuedTask;
+			int remainingTasks;
+			boolean startWorker;
+
+			lock.lock();
+			try {
+				queuedTask = nextTask();
+				remainingTasks = queuedTasks;
+				if (queuedTask == null && remainingTasks == 0) {
+					removeWorker();
+					return;
+				}
+				startWorker = queuedTask != null && remainingTasks > 0 && tryAddWorker();
+			} finally {
+				lock.unlock();
+			}
+
+			if (queuedTask == null) {
+				LOGGER.atWarn().log("A worker of the {} lane was interrupted, handing {} queued tasks over to a new worker", workClass, remainingTasks);
+				tryStartWorker();
+				return;
+			}
+
+			if (startWorker) {
+				tryStartWorker();
+			}
+
+			recordWait(queuedTask, remainingTasks);
+			run(queuedTask.task());
+		}
+	}
+
+	/**
+	 * Starts a worker already counted as active, for the tasks still queued.
+	 * If the executor doesn't accept it, because it's shutting down, the worker is no longer counted.
+	 */
+	private void tryStartWorker() {
+		try {
+			startWorker();
+		} catch (RejectedExecutionException _) {
+			LOGGER.atDebug().log("No additional worker could be started in the {} lane", workClass);
+		}
+	}
+
+	/**
+	 * Picks the task of the next user allowed to have a request processed,
+	 * waiting for a token to be available if every user with pending tasks is being throttled.
+	 * Must be called holding the lock.
+	 *
+	 * @return the next task, or {@code null} if there are no more tasks or if the thread was interrupted
+	 */
+	private QueuedTask nextTask() {
+		while (queuedTasks > 0) {
+			var minWaitNanos = Long.MAX_VALUE;
+
+			for (int i = pendingUsers.size(); i > 0; i--) {
+				var userId = pendingUsers.pollFirst();
+				var waitNanos = throttle.tryAcquire(userId);
+
+				if (waitNanos == 0) {
+					var userQueue = userQueues.get(userId);
+					var queuedTask = userQueue.poll();
+
+					if (userQueue.isEmpty()) {
+						userQueues.remove(userId);
+					} else {
+						pendingUsers.addLast(userId);
+					}
+
+					queuedTasks--;
+					return queuedTask;
+				}
+
+				pendingUsers.addLast(userId);
+				minWaitNanos = Math.min(minWaitNanos, waitNanos);
+			}
+
+			try {
+				tasksAvailable.awaitNanos(minWaitNanos);
+			} catch (InterruptedException _) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+
+		return null;
+	}
+
+	private void recordWait(QueuedTask queuedTask, int remainingTasks) {
+		long waitNanos = System.nanoTime() - queuedTask.enqueuedAt();
+		startedTasks.increment();
+		totalWaitNanos.add(waitNanos);
+		maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+
+		LOGGER.atDebug().log("The task waited {} ms in the {} lane, {} tasks still queued", NANOSECONDS.toMillis(waitNanos), workClass, remainingTasks);
+	}
+
+	private void run(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			LOGGER.atError().setCause(e).log("An unexpected failure happened processing a task in the {} lane", workClass);
+		} finally {
+			completedTasks.increment();
+		}
+	}
+
+	/**
+	 * Removes all the tasks still waiting in the queue, waking up the workers waiting for tokens.
+	 *
+	 * @return the tasks removed
+	 */
+	List<Runnable> cancel() {
+		var cancelledTasks = new ArrayList<Runnable>();
+
+		lock.lock();
+		try {
+			userQueues.values().forEach(userQueue -> userQueue.forEach(queuedTask -> cancelledTasks.add(queuedTask.task())));
+			userQueues.clear();
+			pendingUsers.clear();
+			queuedTasks = 0;
+			tasksAvailable.signalAll();
+		} finally {
+			lock.unlock();
+		}
+
+		return cancelledTasks;
+	}
+
+	LaneStatistics getStatistics() {
+		int tasks;
+		int users;
+		int workers;
+
+		lock.lock();
+		try {
+			tasks = queuedTasks;
+			users = pendingUsers.size();
+			workers = activeWorkers;
+		} finally {
+			lock.unlock();
+		}
+
+		return new LaneStatistics(tasks, users, workers, startedTasks.sum(), completedTasks.sum(), totalWaitNanos.sum(), NANOSECONDS.toMillis(maxWaitNanos.get()));
+	}
+
+	private record QueuedTask(Runnable task, long enqueuedAt) {}
+}
@@ -0,0 +1,14 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+/**
+ * Data class representing a snapshot of the state of a lane.
+ *
+ * @param queuedTasks the number of tasks waiting to be processed
+ * @param queuedUsers the number of users having tasks waiting to be processed
+ * @param activeWorkers the number of tasks being processed
+ * @param startedTasks the number of tasks taken from the queue since the start of the bot
+ * @param completedTasks the number of tasks processed since the start of the bot
+ * @param totalWaitNanos the time spent in the queue by all the tasks taken from it
+ * @param maxWaitMillis the longest time spent by a task in the queue
+ */
+public record LaneStatistics(int queuedTasks, int queuedUsers, int activeWorkers, long startedTasks, long completedTasks, long totalWaitNanos, long maxWaitMillis) {}
@@ -0,0 +1,302 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+import com.github.stickerifier.stickerify.telegram.model.TelegramRequest;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Scheduler dispatching the requests to a separate lane for each {@link WorkClass}.
+ * Every lane has its own reserved workers, so that cheap requests never wait behind expensive ones,
+ * and serves its users fairly, so that a user sending many files doesn't delay everyone else.
+ * The workers which aren't reserved are shared by the lanes, so the overall number of requests processed
+ * at the same time never exceeds the maximum, whichever lanes they belong to.
+ * <p>
+ * Admission is bounded both in number of requests and in estimated work:
+ * requests are counted from the moment they are scheduled until they are answered,
+ * and new ones are refused once any of the limits is reached.
+ * The work admitted for a single user is bounded too, so that a user whose requests are parked behind the throttle
+ * can't take the whole budget and keep everyone else's requests from being admitted.
+ */
+public final class RequestScheduler {
+
+	private final Map<WorkClass, Lane> lanes = new EnumMap<>(WorkClass.class);
+	private final int maxRequests;
+	private final long maxWork;
+	private final long maxUserWork;
+	private final Map<Long, Long> admittedWorkByUser = new HashMap<>();
+	private final ReentrantLock admissionLock = new ReentrantLock();
+	private final Condition capacityReleased = admissionLock.newCondition();
+	private int admittedRequests;
+	private long admittedWork;
+	private boolean shutdown;
+
+	/**
+	 * Creates a new scheduler.
+	 *
+	 * @param workerExecutor the executor used to run the workers of the lanes
+	 * @param maxWorkers the maximum number of requests processed concurrently by all the lanes
+	 * @param reservedWorkers the number of workers reserved to each lane, 1 for the lanes missing in the map
+	 * @param throttle the rate limiter shared by all the lanes
+	 * @param maxRequests the maximum number of requests admitted and not yet answered
+	 * @param maxWork the maximum estimated work of the requests admitted and not yet answered
+	 * @param maxUserWork the maximum estimated work of the requests of a single user admitted and not yet answered
+	 * @throws IllegalArgumentException if the reserved workers exceed the maximum, or if a lane has no reserved worker
+	 */
+	public RequestScheduler(Executor workerExecutor, int maxWorkers, Map<WorkClass, Integer> reservedWorkers, UserThrottle throttle, int maxRequests, long maxWork, long maxUserWork) {
+		this.maxRequests = maxRequests;
+		this.maxWork = maxWork;
+		this.maxUserWork = maxUserWork;
+
+		var totalReservedWorkers = 0;
+		for (var workClass : WorkClass.values()) {
+			var laneWorkers = reservedWorkers.getOrDefault(workClass, 1);
+			if (laneWorkers < 1) {
+				throw new IllegalArgumentException("The " + workClass + " lane needs at least one reserved worker");
+			}
+			totalReservedWorkers += laneWorkers;
+		}
+
+		if (totalReservedWorkers > maxWorkers) {
+			throw new IllegalArgumentException("The " + totalReservedWorkers + " workers reserved to the lanes exceed the maximum of " + maxWorkers);
+		}
+
+		var sharedWorkers = new SharedWorkers(maxWorkers - totalReservedWorkers);
+		for (var workClass : WorkClass.values()) {
+			lanes.put(workClass, new Lane(workClass, reservedWorkers.getOrDefault(workClass, 1), sharedWorkers, workerExecutor, throttle));
+		}
+	}
+
+	/**
+	 * Queues the task answering the request in the lane matching its class of work,
+	 * if there is room for it within the admission limits.
+	 * A request exceeding the work limit on its own is admitted only when no other request is pending,
+	 * and one exceeding the limit of its user only when no other request of the same user is pending.
+	 * The latter limit is checked without waiting, as it's the user's own requests that need to be answered first.
+	 *
+	 * @param request the request to answer
+	 * @param task the task answering the request
+	 * @param timeout the maximum time to wait for room to be available
+	 * @return whether the request was admitted, refused because the scheduler is at capacity,
+	 * or refused because its user already has too much work pending
+	 */
+	public Admission trySchedule(TelegramRequest request, Runnable task, Duration timeout) {
+		var workClass = WorkClass.of(request);
+		var work = workClass.estimateWork(request);
+		var userId = request.getUserId();
+
+		var admission = tryAdmit(userId, work, timeout);
+		if (admission != Admission.ADMITTED) {
+			return admission;
+		}
+
+		try {
+			lanes.get(workClass).submit(userId, new AdmittedTask(task, userId, work));
+		} catch (RuntimeException e) {
+			release(userId, work);
+			throw e;
+		}
+
+		return Admission.ADMITTED;
+	}
+
+	private Admission tryAdmit(Long userId, long work, Duration timeout) {
+		var remainingNanos = timeout.toNanos();
+
+		admissionLock.lock();
+		try {
+			while (!hasRoomFor(work)) {
+				if (!hasUserRoomFor(userId, work)) {
+					return Admission.USER_LIMIT_REACHED;
+				}
+
+				if (shutdown || remainingNanos <= 0) {
+					return Admission.REFUSED;
+				}
+
+				remainingNanos = capacityReleased.awaitNanos(remainingNanos);
+			}
+
+			if (!hasUserRoomFor(userId, work)) {
+				return Admission.USER_LIMIT_REACHED;
+			}
+
+			admittedRequests++;
+			admittedWork += work;
+			admittedWorkByUser.merge(userId, work, Long::sum);
+
+			return Admission.ADMITTED;
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+			return Admission.REFUSED;
+		} finally {
+			admissionLock.unlock();
+		}
+	}
+
+	private boolean hasRoomFor(long work) {
+		if (shutdown) {
+			return false;
+		}
+
+		return admittedRequests == 0 || (admittedRequests < maxRequests && admittedWork + work <= maxWork);
+	}
+
+	private boolean hasUserRoomFor(Long userId, long work) {
+		var userWork = admittedWorkByUser.get(userId);
+
+		return userWork == null || userWork + work <= maxUserWork;
+	}
+
+	private void release(Long userId, long work) {
+		admissionLock.lock();
+		try {
+			admittedRequests--;
+			admittedWork -= work;
+			admittedWorkByUser.computeIfPresent(userId, (_, userWork) -> userWork == work ? null : userWork - work);
+			capacityReleased.signalAll();
+		} finally {
+			admissionLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops admitting new requests, letting the ones already admitted be processed.
+	 *
+	 * @return the number of requests admitted and not yet answered
+	 */
+	public int shutdown() {
+		admissionLock.lock();
+		try {
+			shutdown = true;
+			capacityReleased.signalAll();
+
+			return admittedRequests;
+		} finally {
+			admissionLock.unlock();
+		}
+	}
+
+	/**
+	 * Waits for all the admitted requests to be answered.
+	 *
+	 * @param timeout the maximum time to wait
+	 * @return {@code true} if all the requests were answered, {@code false} if the waiting time elapsed
+	 * @throws InterruptedException if the thread was interrupted while waiting
+	 */
+	public boolean awaitTermination(Duration timeout) throws InterruptedException {
+		var remainingNanos = timeout.toNanos();
+
+		admissionLock.lock();
+		try {
+			while (admittedRequests > 0) {
+				if (remainingNanos <= 0) {
+					return false;
+				}
+
+				remainingNanos = capacityReleased.awaitNanos(remainingNanos);
+			}
+
+			return true;
+		} finally {
+			admissionLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes from every lane the requests which didn't start being processed yet.
+	 *
+	 * @return the number of requests removed
+	 */
+	public int cancelQueued() {
+		var cancelled = 0;
+
+		for (var lane : lanes.values()) {
+			for (var task : lane.cancel()) {
+				if (task instanceof AdmittedTask admittedTask) {
+					release(admittedTask.userId(), admittedTask.work());
+				}
+				cancelled++;
+			}
+		}
+
+		return cancelled;
+	}
+
+	/**
+	 * Retrieves the number of requests admitted and not yet answered.
+	 *
+	 * @return the number of pending requests
+	 */
+	public int getAdmittedRequests() {
+		admissionLock.lock();
+		try {
+			return admittedRequests;
+		} finally {
+			admissionLock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the estimated work of the requests admitted and not yet answered.
+	 *
+	 * @return the pending work, in arbitrary units
+	 */
+	public long getAdmittedWork() {
+		admissionLock.lock();
+		try {
+			return admittedWork;
+		} finally {
+			admissionLock.unlock();
+		}
+	}
+
+	/**
+	 * Retrieves the current state of every lane.
+	 *
+	 * @return the statistics of each lane
+	 */
+	public Map<WorkClass, LaneStatistics> getStatistics() {
+		var statistics = new EnumMap<WorkClass, LaneStatistics>(WorkClass.class);
+		lanes.forEach((workClass, lane) -> statistics.put(workClass, lane.getStatistics()));
+
+		return statistics;
+	}
+
+	/**
+	 * Task holding the admission of its request until it completes.
+	 */
+	private final class AdmittedTask implements Runnable {
+		private final Runnable task;
+		private final Long userId;
+		private final long work;
+
+		private AdmittedTask(Runnable task, Long userId, long work) {
+			this.task = task;
+			this.userId = userId;
+			this.work = work;
+		}
+
+		private Long userId() {
+			return userId;
+		}
+
+		private long work() {
+			return work;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				release(userId, work);
+			}
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Workers shared by all the lanes on top of the ones each lane reserves for itself:
+ * a lane borrows them when its own workers are busy, and gives them back as soon as its queue is empty,
+ * so that the overall number of workers never exceeds the configured maximum.
+ */
+final class SharedWorkers {
+
+	private final AtomicInteger availableWorkers;
+
+	/**
+	 * Creates a new pool of shared workers.
+	 *
+	 * @param size the number of workers the lanes can borrow
+	 */
+	SharedWorkers(int size) {
+		this.availableWorkers = new AtomicInteger(size);
+	}
+
+	/**
+	 * Borrows a worker, if any is available.
+	 *
+	 * @return {@code true} if the worker was borrowed and has to be given back with {@link #release()}
+	 */
+	boolean tryAcquire() {
+		int available;
+
+		do {
+			available = availableWorkers.get();
+			if (available == 0) {
+				return false;
+			}
+		} while (!availableWorkers.compareAndSet(available, available - 1));
+
+		return true;
+	}
+
+	void release() {
+		availableWorkers.incrementAndGet();
+	}
+
+	int available() {
+		return availableWorkers.get();
+	}
+}
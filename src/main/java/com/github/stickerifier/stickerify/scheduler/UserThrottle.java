@@ -0,0 +1,119 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Registry of a token bucket for every user, limiting how many requests each of them can have processed over time.
+ * <p>
+ * Buckets are kept in access order and bounded in number: idle users, whose bucket is already full again,
+ * are forgotten since they would be indistinguishable from new ones, and if the limit is still exceeded
+ * the least recently seen user is evicted.
+ */
+public final class UserThrottle {
+
+	private static final int EXPIRATION_INTERVAL = 256;
+
+	private final int burstSize;
+	private final double tokensPerNano;
+	private final int maxUsers;
+	private final Map<Long, TokenBucket> buckets;
+	private final ReentrantLock lock = new ReentrantLock();
+	private int acquisitions;
+
+	/**
+	 * Creates a new throttle.
+	 *
+	 * @param burstSize the number of requests a user can have processed in a row
+	 * @param requestsPerMinute the rate at which a user's bucket gets refilled
+	 * @param maxUsers the maximum number of users to keep track of
+	 */
+	public UserThrottle(int burstSize, double requestsPerMinute, int maxUsers) {
+		this.burstSize = burstSize;
+		this.tokensPerNano = requestsPerMinute / MINUTES.toNanos(1);
+		this.maxUsers = maxUsers;
+		this.buckets = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, TokenBucket> eldest) {
+				return size() > UserThrottle.this.maxUsers;
+			}
+		};
+	}
+
+	/**
+	 * Tries to take a token from the bucket of the user.
+	 *
+	 * @param userId the identifier of the user
+	 * @return {@code 0} if the token was taken, otherwise the nanoseconds to wait for the next token
+	 */
+	long tryAcquire(Long userId) {
+		var now = System.nanoTime();
+
+		lock.lock();
+		try {
+			if (++acquisitions % EXPIRATION_INTERVAL == 0) {
+				expireIdleUsers(now);
+			}
+
+			return buckets.computeIfAbsent(userId, _ -> new TokenBucket(burstSize, now)).tryConsume(now);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the buckets which have been refilled, starting from the least recently used one.
+	 * The iteration stops at the first user still being throttled, as the following ones have been seen more recently.
+	 */
+	private void expireIdleUsers(long now) {
+		var iterator = buckets.values().iterator();
+
+		while (iterator.hasNext() && iterator.next().isFull(now)) {
+			iterator.remove();
+		}
+	}
+
+	int trackedUsers() {
+		lock.lock();
+		try {
+			return buckets.size();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private final class TokenBucket {
+		private double tokens;
+		private long lastRefill;
+
+		private TokenBucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.lastRefill = now;
+		}
+
+		private long tryConsume(long now) {
+			refill(now);
+
+			if (tokens >= 1) {
+				tokens--;
+				return 0;
+			}
+
+			return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+		}
+
+		private boolean isFull(long now) {
+			refill(now);
+
+			return tokens >= burstSize;
+		}
+
+		private void refill(long now) {
+			tokens = Math.min(burstSize, tokens + (now - lastRefill) * tokensPerNano);
+			lastRefill = now;
+		}
+	}
+}
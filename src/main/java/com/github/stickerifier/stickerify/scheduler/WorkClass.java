@@ -0,0 +1,79 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+import com.github.stickerifier.stickerify.telegram.model.TelegramFile;
+import com.github.stickerifier.stickerify.telegram.model.TelegramRequest;
+
+/**
+ * Enum class representing the kinds of work the bot does, each one processed in its own lane.
+ */
+public enum WorkClass {
+	/**
+	 * Text replies, including the ones to unsupported or too large files.
+	 */
+	TEXT(1),
+	/**
+	 * Conversions of static images and animated stickers.
+	 */
+	IMAGE(4),
+	/**
+	 * Conversions of videos, animations and video stickers.
+	 */
+	VIDEO(16);
+
+	private static final long BYTES_PER_WORK_UNIT = 1_000_000L;
+
+	private final int weight;
+
+	WorkClass(int weight) {
+		this.weight = weight;
+	}
+
+	/**
+	 * Estimates the work needed to answer the request, scaling the weight of its class by the size of the file.
+	 *
+	 * @param request the request to estimate
+	 * @return the estimated work, in arbitrary units
+	 */
+	public long estimateWork(TelegramRequest request) {
+		if (this == TEXT) {
+			return weight;
+		}
+
+		var size = request.getFile().size();
+		var megabytes = size == null ? 1 : Math.max(1, Math.ceilDiv(size, BYTES_PER_WORK_UNIT));
+
+		return weight * megabytes;
+	}
+
+	/**
+	 * Classifies the request based on the media it contains.
+	 *
+	 * @param request the request to classify
+	 * @return the class of work needed to answer the request
+	 */
+	public static WorkClass of(TelegramRequest request) {
+		var file = request.getFile();
+		if (file == null || file == TelegramFile.NOT_SUPPORTED || !file.canBeDownloaded()) {
+			return TEXT;
+		}
+
+		var message = request.message();
+		if (message.video() != null || message.videoNote() != null || message.animation() != null) {
+			return VIDEO;
+		}
+
+		if (message.sticker() != null) {
+			return Boolean.TRUE.equals(message.sticker().isVideo()) ? VIDEO : IMAGE;
+		}
+
+		if (message.document() != null && isVideoMimeType(message.document().mimeType())) {
+			return VIDEO;
+		}
+
+		return IMAGE;
+	}
+
+	private static boolean isVideoMimeType(String mimeType) {
+		return mimeType != null && (mimeType.startsWith("video/") || "image/gif".equals(mimeType));
+	}
+}
@@ -27,6 +27,9 @@ public enum Answer {
 	FILE_TOO_LARGE("""
 			The file can't be converted because Telegram bots can't handle files larger than 20 MB at the moment: please send a smaller one\\.
 			"""),
+	TOO_MANY_REQUESTS("""
+			You sent too many files at once: please wait for the ones being converted before sending new ones\\.
+			"""),
 	ABOUT("""
 			This bot is open source, check it out on [Github](https://github.com/Stickerifier/Stickerify)\\.
 
@@ -1,10 +1,17 @@
 package com.github.stickerifier.stickerify.telegram.model;
 
-public record TelegramFile(String id, Long size) {
-	public static final TelegramFile NOT_SUPPORTED = new TelegramFile(null, null);
-	public static final TelegramFile TOO_LARGE = new TelegramFile(null, Long.MAX_VALUE);
+/**
+ * Data class representing a file sent to the bot.
+ *
+ * @param id the identifier used to download or resend the file
+ * @param uniqueId the identifier which is supposed to be the same over time and for different bots
+ * @param size the size of the file in bytes, if known
+ */
+public record TelegramFile(String id, String uniqueId, Long size) {
+	public static final TelegramFile NOT_SUPPORTED = new TelegramFile(null, null, null);
+	public static final TelegramFile TOO_LARGE = new TelegramFile(null, null, Long.MAX_VALUE);
 
-	private static final long MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES = 20_000_000L;
+	public static final long MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES = 20_000_000L;
 
 	public boolean canBeDownloaded() {
 		return size == null || size <= MAX_DOWNLOADABLE_FILE_SIZE_IN_BYTES;
@@ -314,6 +314,69 @@ public final class MockResponses {
 			}
 			""").build();
 
+	static final MockResponse REPEATED_PNG_FILE = new MockResponse.Builder().body("""
+			{
+				ok: true,
+				result: [
+					{
+						update_id: 1,
+						message: {
+							message_id: 1,
+							from: {
+								id: 123456
+							},
+							chat: {
+								id: 1
+							},
+							photo: [
+								{
+									file_id: "big.png",
+									file_unique_id: "big_png",
+									file_size: 200000
+								}
+							]
+						}
+					},
+					{
+						update_id: 2,
+						message: {
+							message_id: 2,
+							from: {
+								id: 654321
+							},
+							chat: {
+								id: 2
+							},
+							photo: [
+								{
+									file_id: "forwarded_big.png",
+									file_unique_id: "big_png",
+									file_size: 200000
+								}
+							]
+						}
+					}
+				]
+			}
+			""").build();
+
+	static final MockResponse DOCUMENT_SENT = new MockResponse.Builder().body("""
+			{
+				ok: true,
+				result: {
+					message_id: 3,
+					date: 1,
+					chat: {
+						id: 1
+					},
+					document: {
+						file_id: "converted.webp",
+						file_unique_id: "converted_webp"
+					}
+				}
+			}
+			""").build();
+
 	static MockResponse fileInfo(String id) {
 		return new MockResponse.Builder().body("""
 				{
@@ -326,6 +389,19 @@ public final class MockResponses {
 				""".formatted(id)).build();
 	}
 
+	static MockResponse fileInfo(String id, long size) {
+		return new MockResponse.Builder().body("""
+				{
+					ok: true,
+					result: {
+						file_id: "%1$s",
+						file_path: "%1$s",
+						file_size: %2$d
+					}
+				}
+				""".formatted(id, size)).build();
+	}
+
 	static MockResponse fileDownload(File file) throws Exception {
 		try (var buffer = new Buffer(); var source = Okio.source(file)) {
 			buffer.writeAll(source);
@@ -333,6 +409,13 @@ public final class MockResponses {
 		}
 	}
 
+	static MockResponse oversizedFileDownload() {
+		try (var buffer = new Buffer()) {
+			buffer.write(new byte[20_000_001]);
+			return new MockResponse.Builder().body(buffer).build();
+		}
+	}
+
 	private MockResponses() {
 		throw new UnsupportedOperationException();
 	}
@@ -16,12 +16,35 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 
+import java.net.URI;
 import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
 
 @ClearTempFiles
 @ExtendWith(MockWebServerExtension.class)
 class StickerifyTest {
 
+	private static final String WEBHOOK_SECRET = "secret";
+
+	private static final String WEBHOOK_UPDATE = """
+			{
+				"update_id": 1,
+				"message": {
+					"message_id": 1,
+					"from": {
+						"id": 123456
+					},
+					"chat": {
+						"id": 1
+					},
+					"text": "/help"
+				}
+			}
+			""";
+
 	private MockWebServer server;
 
 	@BeforeEach
@@ -44,13 +67,15 @@ class StickerifyTest {
 	}
 
 	private void startBot() {
-		var bot = new TelegramBot.Builder("token")
+		new Stickerify(createBot(), Runnable::run);
+	}
+
+	private TelegramBot createBot() {
+		return new TelegramBot.Builder("token")
 				.apiUrl(server.url("api/").toString())
 				.fileApiUrl(server.url("files/").toString())
 				.updateListenerSleep(500)
 				.build();
-
-		new Stickerify(bot, Runnable::run);
 	}
 
 	private static void assertResponseContainsMessage(RecordedRequest request, Answer answer) {
@@ -114,6 +139,28 @@ class StickerifyTest {
 		assertResponseContainsMessage(sendMessage, Answer.FILE_TOO_LARGE);
 	}
 
+	@Test
+	void downloadedFileTooBig() throws Exception {
+		server.enqueue(MockResponses.MOV_FILE);
+		server.enqueue(MockResponses.fileInfo("long.mov"));
+		server.enqueue(MockResponses.oversizedFileDownload());
+
+		startBot();
+
+		var getUpdates = server.takeRequest();
+		assertEquals("/api/token/getUpdates", getUpdates.getPath());
+
+		var getFile = server.takeRequest();
+		assertEquals("/api/token/getFile", getFile.getPath());
+
+		var download = server.takeRequest();
+		assertEquals("/files/token/long.mov", download.getPath());
+
+		var sendMessage = server.takeRequest();
+		assertEquals("/api/token/sendMessage", sendMessage.getPath());
+		assertResponseContainsMessage(sendMessage, Answer.FILE_TOO_LARGE);
+	}
+
 	@Test
 	void fileAlreadyValid() throws Exception {
 		server.enqueue(MockResponses.ANIMATED_STICKER);
@@ -160,6 +207,56 @@ class StickerifyTest {
 		assertThat(sendDocument.getBody().readUtf8(), containsString(Answer.FILE_READY.getText()));
 	}
 
+	@Test
+	void convertedPngInMemory() throws Exception {
+		var pngFile = loadResource("big.png");
+		server.enqueue(MockResponses.PNG_FILE);
+		server.enqueue(MockResponses.fileInfo("big.png", pngFile.length()));
+		server.enqueue(MockResponses.fileDownload(pngFile));
+
+		startBot();
+
+		var getUpdates = server.takeRequest();
+		assertEquals("/api/token/getUpdates", getUpdates.getPath());
+
+		var getFile = server.takeRequest();
+		assertEquals("/api/token/getFile", getFile.getPath());
+		assertEquals("file_id=big.png", getFile.getBody().readUtf8());
+
+		var download = server.takeRequest();
+		assertEquals("/files/token/big.png", download.getPath());
+
+		var sendDocument = server.takeRequest();
+		assertEquals("/api/token/sendDocument", sendDocument.getPath());
+		var body = sendDocument.getBody().readUtf8();
+		assertThat(body, containsString(Answer.FILE_READY.getText()));
+		assertThat(body, containsString("Stickerify.webp"));
+	}
+
+	@Test
+	void truncatedDownloadInMemory() throws Exception {
+		var pngFile = loadResource("big.png");
+		server.enqueue(MockResponses.PNG_FILE);
+		server.enqueue(MockResponses.fileInfo("big.png", pngFile.length() + 1));
+		server.enqueue(MockResponses.fileDownload(pngFile));
+
+		startBot();
+
+		var getUpdates = server.takeRequest();
+		assertEquals("/api/token/getUpdates", getUpdates.getPath());
+
+		var getFile = server.takeRequest();
+		assertEquals("/api/token/getFile", getFile.getPath());
+		assertEquals("file_id=big.png", getFile.getBody().readUtf8());
+
+		var download = server.takeRequest();
+		assertEquals("/files/token/big.png", download.getPath());
+
+		var sendMessage = server.takeRequest();
+		assertEquals("/api/token/sendMessage", sendMessage.getPath());
+		assertResponseContainsMessage(sendMessage, Answer.ERROR);
+	}
+
 	@Test
 	void convertedWebp() throws Exception {
 		server.enqueue(MockResponses.WEBP_FILE);
@@ -297,4 +394,66 @@ class StickerifyTest {
 		assertEquals("/api/token/sendMessage", sendMessage.getPath());
 		assertResponseContainsMessage(sendMessage, Answer.CORRUPTED);
 	}
+
+	@Test
+	void repeatedFileIsNotConvertedAgain() throws Exception {
+		server.enqueue(MockResponses.REPEATED_PNG_FILE);
+		server.enqueue(MockResponses.fileInfo("big.png"));
+		server.enqueue(MockResponses.fileDownload(loadResource("big.png")));
+		server.enqueue(MockResponses.DOCUMENT_SENT);
+
+		startBot();
+
+		var getUpdates = server.takeRequest();
+		assertEquals("/api/token/getUpdates", getUpdates.getPath());
+
+		var getFile = server.takeRequest();
+		assertEquals("/api/token/getFile", getFile.getPath());
+		assertEquals("file_id=big.png", getFile.getBody().readUtf8());
+
+		var download = server.takeRequest();
+		assertEquals("/files/token/big.png", download.getPath());
+
+		var sendDocument = server.takeRequest();
+		assertEquals("/api/token/sendDocument", sendDocument.getPath());
+		assertThat(sendDocument.getBody().readUtf8(), containsString(Answer.FILE_READY.getText()));
+
+		var resendDocument = server.takeRequest();
+		assertEquals("/api/token/sendDocument", resendDocument.getPath());
+		assertThat(resendDocument.getBody().readUtf8(), containsString("document=converted.webp"));
+	}
+
+	@Test
+	void webhookUpdateIsAnswered() throws Exception {
+		var stickerify = startWebhookBot();
+
+		postUpdate(stickerify, WEBHOOK_SECRET);
+
+		var sendMessage = server.takeRequest();
+		assertEquals("/api/token/sendMessage", sendMessage.getPath());
+		assertResponseContainsMessage(sendMessage, Answer.HELP);
+	}
+
+	@Test
+	void webhookUpdateWithWrongSecretIsRefused() throws Exception {
+		var stickerify = startWebhookBot();
+
+		var response = postUpdate(stickerify, "wrong").get();
+
+		assertEquals(401, response.statusCode());
+		assertEquals(0, server.getRequestCount());
+	}
+
+	private Stickerify startWebhookBot() {
+		return new Stickerify(createBot(), Runnable::run, new WebhookSettings(0, "/webhook", WEBHOOK_SECRET, null));
+	}
+
+	private static CompletableFuture<HttpResponse<Void>> postUpdate(Stickerify stickerify, String secretToken) {
+		var request = HttpRequest.newBuilder(URI.create("http://localhost:" + stickerify.getWebhookPort() + "/webhook"))
+				.header("X-Telegram-Bot-Api-Secret-Token", secretToken)
+				.POST(HttpRequest.BodyPublishers.ofString(WEBHOOK_UPDATE))
+				.build();
+
+		return HttpClient.newHttpClient().sendAsync(request, HttpResponse.BodyHandlers.discarding());
+	}
 }
@@ -0,0 +1,107 @@
+package com.github.stickerifier.stickerify.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+class ConversionCacheTest {
+
+	@TempDir
+	Path tempDir;
+
+	@Test
+	void cachedConversionIsRetrieved() {
+		var cache = new ConversionCache(10, null);
+		cache.put("unique", new CachedConversion("converted"));
+		cache.put("valid", CachedConversion.ALREADY_VALID);
+
+		assertThat(cache.get("unique"), is(equalTo(new CachedConversion("converted"))));
+		assertThat(cache.get("valid").isAlreadyValid(), is(true));
+		assertThat(cache.get("missing"), is(nullValue()));
+	}
+
+	@Test
+	void leastRecentlyUsedEntryIsEvicted() {
+		var cache = new ConversionCache(2, null);
+		cache.put("first", new CachedConversion("1"));
+		cache.put("second", new CachedConversion("2"));
+		cache.get("first");
+		cache.put("third", new CachedConversion("3"));
+
+		assertThat(cache.size(), is(equalTo(2)));
+		assertThat(cache.get("second"), is(nullValue()));
+		assertThat(cache.get("first"), is(equalTo(new CachedConversion("1"))));
+	}
+
+	@Test
+	void entriesSurviveRestart() {
+		var indexFile = tempDir.resolve("cache.index");
+
+		var cache = new ConversionCache(10, indexFile);
+		cache.put("unique", new CachedConversion("converted"));
+		cache.put("valid", CachedConversion.ALREADY_VALID);
+		cache.put("removed", new CachedConversion("removed"));
+		cache.remove("removed");
+		cache.flush();
+
+		var restoredCache = new ConversionCache(10, indexFile);
+
+		assertThat(restoredCache.size(), is(equalTo(2)));
+		assertThat(restoredCache.get("unique"), is(equalTo(new CachedConversion("converted"))));
+		assertThat(restoredCache.get("valid").isAlreadyValid(), is(true));
+		assertThat(restoredCache.get("removed"), is(nullValue()));
+	}
+
+	@Test
+	void indexIsCompacted() throws Exception {
+		var indexFile = tempDir.resolve("cache.index");
+
+		var cache = new ConversionCache(2, indexFile, Runnable::run);
+		for (int i = 0; i < 10; i++) {
+			cache.put("unique" + i, new CachedConversion("converted" + i));
+		}
+
+		try (var lines = Files.lines(indexFile)) {
+			assertThat(lines.count() <= 4, is(true));
+		}
+	}
+
+	@Test
+	void removalIsAppendedToIndex() throws Exception {
+		var indexFile = tempDir.resolve("cache.index");
+
+		var cache = new ConversionCache(10, indexFile);
+		cache.put("unique", new CachedConversion("converted"));
+		cache.remove("unique");
+		cache.flush();
+
+		assertThat(Files.readAllLines(indexFile), is(equalTo(List.of("unique\tconverted", "unique"))));
+		assertThat(new ConversionCache(10, indexFile).get("unique"), is(nullValue()));
+	}
+
+	@Test
+	void indexIsWrittenInBackground() throws Exception {
+		var indexFile = tempDir.resolve("cache.index");
+		var scheduledFlushes = new ArrayList<Runnable>();
+
+		var cache = new ConversionCache(10, indexFile, scheduledFlushes::add);
+		cache.put("first", new CachedConversion("1"));
+		cache.put("second", new CachedConversion("2"));
+
+		assertThat(Files.exists(indexFile), is(false));
+		assertThat(scheduledFlushes.size(), is(equalTo(1)));
+
+		scheduledFlushes.getFirst().run();
+
+		assertThat(Files.readAllLines(indexFile), is(equalTo(List.of("first\t1", "second\t2"))));
+	}
+}
@@ -0,0 +1,57 @@
+package com.github.stickerifier.stickerify.cache;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionException;
+
+class SingleFlightTest {
+
+	@Test
+	void concurrentCallersWaitForTheLeader() {
+		var flights = new SingleFlight<String, String>();
+		var leader = flights.join("unique");
+		var waiter = flights.join("unique");
+
+		assertThat(leader.leader(), is(true));
+		assertThat(waiter.leader(), is(false));
+
+		leader.result().complete("converted");
+
+		assertThat(waiter.await().join(), is(equalTo("converted")));
+		assertThat(flights.size(), is(equalTo(0)));
+	}
+
+	@Test
+	void failureIsPropagatedToWaiters() {
+		var flights = new SingleFlight<String, String>();
+		var leader = flights.join("unique");
+		var waiter = flights.join("unique");
+
+		leader.result().completeExceptionally(new IllegalStateException("corrupted"));
+
+		var exception = assertThrows(CompletionException.class, () -> waiter.await().join());
+		assertThat(exception.getCause(), is(instanceOf(IllegalStateException.class)));
+		assertThat(flights.join("unique").leader(), is(true));
+	}
+
+	@Test
+	void waiterGivingUpDoesNotCancelTheWork() {
+		var flights = new SingleFlight<String, String>();
+		var leader = flights.join("unique");
+		var impatientWaiter = flights.join("unique").await();
+		var waiter = flights.join("unique");
+
+		impatientWaiter.cancel(false);
+		leader.result().complete("converted");
+
+		assertThrows(CancellationException.class, impatientWaiter::join);
+		assertThat(waiter.await().join(), is(equalTo("converted")));
+	}
+}
@@ -0,0 +1,79 @@
+package com.github.stickerifier.stickerify.cancellation;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.stickerifier.stickerify.exception.RequestCancelledException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+class CancellationTokenTest {
+
+	@Test
+	void callbacksRunOnceWhenCancelled() {
+		var calls = new AtomicInteger();
+		var token = CancellationToken.create();
+		token.onCancel(calls::incrementAndGet);
+
+		token.cancel("the user blocked the bot");
+		token.cancel("its deadline expired");
+
+		assertThat(calls.get(), is(equalTo(1)));
+		assertThat(token.getReason(), is(equalTo("the user blocked the bot")));
+		var exception = assertThrows(RequestCancelledException.class, token::throwIfCancelled);
+		assertThat(exception.getMessage(), containsString("the user blocked the bot"));
+	}
+
+	@Test
+	void callbackRegisteredAfterCancellationRunsImmediately() {
+		var calls = new AtomicInteger();
+		var token = CancellationToken.create();
+		token.cancel("the user blocked the bot");
+
+		token.onCancel(calls::incrementAndGet);
+
+		assertThat(calls.get(), is(equalTo(1)));
+	}
+
+	@Test
+	void closedRegistrationIsNotRun() {
+		var calls = new AtomicInteger();
+		var token = CancellationToken.create();
+		token.onCancel(calls::incrementAndGet).close();
+
+		token.cancel("the user blocked the bot");
+
+		assertThat(calls.get(), is(equalTo(0)));
+	}
+
+	@Test
+	void closedTokensStopTrackingTheirDeadline() {
+		var trackedDeadlines = CancellationToken.trackedDeadlines();
+		var tokens = IntStream.range(0, 100).mapToObj(_ -> CancellationToken.withDeadline(Duration.ofMinutes(5))).toList();
+
+		assertThat(CancellationToken.trackedDeadlines(), is(equalTo(trackedDeadlines + 100)));
+
+		tokens.forEach(CancellationToken::close);
+
+		assertThat(CancellationToken.trackedDeadlines(), is(lessThanOrEqualTo(trackedDeadlines)));
+	}
+
+	@Test
+	void tokenIsCancelledOnceDeadlineExpires() throws Exception {
+		var cancelled = new CountDownLatch(1);
+		var token = CancellationToken.withDeadline(Duration.ofMillis(50));
+		token.onCancel(cancelled::countDown);
+
+		assertThat(cancelled.await(5, TimeUnit.SECONDS), is(true));
+		assertThat(token.isCancelled(), is(true));
+	}
+}
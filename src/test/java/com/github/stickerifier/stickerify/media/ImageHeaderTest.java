@@ -0,0 +1,85 @@
+package com.github.stickerifier.stickerify.media;
+
+import static com.github.stickerifier.stickerify.ResourceHelper.loadResource;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.util.Arrays;
+
+class ImageHeaderTest {
+
+	@Test
+	void pngHeaderIsRead() throws Exception {
+		var header = readHeader("valid.png");
+
+		assertThat(header, is(equalTo(new ImageHeader(512, 512, false))));
+	}
+
+	@Test
+	void extendedWebpHeaderIsRead() throws Exception {
+		var header = readHeader("static.webp");
+
+		assertThat(header, is(equalTo(new ImageHeader(512, 1024, false))));
+	}
+
+	@Test
+	void animatedWebpIsDetected() throws Exception {
+		var header = readHeader("animated.webp");
+
+		assertThat(header.animated(), is(true));
+	}
+
+	@Test
+	void lossyWebpHeaderIsRead() {
+		var bytes = webpHeader("VP8 ");
+		bytes[23] = (byte) 0x9D;
+		bytes[24] = 0x01;
+		bytes[25] = 0x2A;
+		bytes[26] = 0x00;
+		bytes[27] = 0x02;
+		bytes[28] = (byte) 0x80;
+		bytes[29] = 0x01;
+
+		assertThat(ImageHeader.of(bytes), is(equalTo(new ImageHeader(512, 384, false))));
+	}
+
+	@Test
+	void losslessWebpHeaderIsRead() {
+		var bytes = webpHeader("VP8L");
+		int bits = (512 - 1) | (300 - 1) << 14;
+		bytes[20] = 0x2F;
+		bytes[21] = (byte) bits;
+		bytes[22] = (byte) (bits >>> 8);
+		bytes[23] = (byte) (bits >>> 16);
+		bytes[24] = (byte) (bits >>> 24);
+
+		assertThat(ImageHeader.of(bytes), is(equalTo(new ImageHeader(512, 300, false))));
+	}
+
+	@Test
+	void otherFormatsHaveNoHeader() throws Exception {
+		assertThat(readHeader("big.jpg"), is(nullValue()));
+		assertThat(ImageHeader.of(new byte[4]), is(nullValue()));
+	}
+
+	private static ImageHeader readHeader(String fileName) throws Exception {
+		var content = Files.readAllBytes(loadResource(fileName).toPath());
+
+		return ImageHeader.of(Arrays.copyOf(content, ImageHeader.SIZE));
+	}
+
+	private static byte[] webpHeader(String chunk) {
+		var bytes = new byte[ImageHeader.SIZE];
+		System.arraycopy("RIFF".getBytes(ISO_8859_1), 0, bytes, 0, 4);
+		System.arraycopy("WEBP".getBytes(ISO_8859_1), 0, bytes, 8, 4);
+		System.arraycopy(chunk.getBytes(ISO_8859_1), 0, bytes, 12, 4);
+
+		return bytes;
+	}
+}
@@ -4,11 +4,15 @@ import static com.github.stickerifier.stickerify.ResourceHelper.loadResource;
 import static com.github.stickerifier.stickerify.media.MediaConstraints.MATROSKA_FORMAT;
 import static com.github.stickerifier.stickerify.media.MediaConstraints.MAX_IMAGE_FILE_SIZE;
 import static com.github.stickerifier.stickerify.media.MediaConstraints.MAX_VIDEO_FILE_SIZE;
+import static com.github.stickerifier.stickerify.media.MediaConstraints.MAX_VIDEO_FRAMES;
 import static com.github.stickerifier.stickerify.media.MediaConstraints.VP9_CODEC;
 import static com.github.stickerifier.stickerify.media.MediaHelper.FFMPEG_LOCATOR;
 import static java.util.concurrent.Executors.newFixedThreadPool;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.lessThanOrEqualTo;
 import static org.hamcrest.Matchers.nullValue;
@@ -25,7 +29,12 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.condition.EnabledIfEnvironmentVariable;
 import ws.schild.jave.EncoderException;
 import ws.schild.jave.MultimediaObject;
+import ws.schild.jave.info.VideoSize;
 
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
@@ -84,6 +93,77 @@ class MediaHelperTest {
 		assertThat(result, is(nullValue()));
 	}
 
+	@Test
+	void resizeImageInMemory() throws Exception {
+		var pngImage = Files.readAllBytes(loadResource("big.png").toPath());
+		var result = MediaHelper.convert(pngImage);
+		var image = ImmutableImage.loader().fromBytes(result.content());
+
+		assertAll("Image validation failed",
+				() -> assertThat("image's name must end with webp", result.fileName(), endsWith(".webp")),
+				() -> assertThat("image's width is not correct", image.width, is(equalTo(512))),
+				() -> assertThat("image's height is not correct", image.height, is(equalTo(512))),
+				() -> assertThat("image size should not exceed 512 KB", (long) result.content().length, is(lessThanOrEqualTo(MAX_IMAGE_FILE_SIZE)))
+		);
+	}
+
+	@Test
+	void noImageConversionNeededInMemory() throws Exception {
+		var pngImage = Files.readAllBytes(loadResource("valid.png").toPath());
+		var result = MediaHelper.convert(pngImage);
+
+		assertThat(result, is(nullValue()));
+	}
+
+	@Test
+	void exifOrientationIsApplied() throws Exception {
+		var jpgImage = createRotatedJpeg(2048, 1024);
+		var expected = ImmutableImage.loader().fromBytes(jpgImage);
+		var result = MediaHelper.toImage(MediaSource.of(jpgImage));
+
+		assertAll("Image orientation failed",
+				() -> assertThat("image must be rotated like Scrimage does", expected.height, is(equalTo(2048))),
+				() -> assertThat("image must be portrait", result.height, is(equalTo(2 * result.width))),
+				() -> assertThat("image's top must be red", result.pixel(result.width / 2, 0).red(), is(greaterThan(200))),
+				() -> assertThat("image's bottom must be blue", result.pixel(result.width / 2, result.height - 1).blue(), is(greaterThan(200)))
+		);
+	}
+
+	/**
+	 * Creates a JPEG image whose left half is red and whose right half is blue,
+	 * with EXIF metadata stating it has to be rotated 90 degrees clockwise to be displayed.
+	 */
+	private static byte[] createRotatedJpeg(int width, int height) throws IOException {
+		var image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		var graphics = image.createGraphics();
+		graphics.setColor(Color.RED);
+		graphics.fillRect(0, 0, width / 2, height);
+		graphics.setColor(Color.BLUE);
+		graphics.fillRect(width / 2, 0, width / 2, height);
+		graphics.dispose();
+
+		var jpeg = new ByteArrayOutputStream();
+		ImageIO.write(image, "jpg", jpeg);
+		var content = jpeg.toByteArray();
+
+		byte[] exif = {
+				(byte) 0xFF, (byte) 0xE1, 0, 34,
+				'E', 'x', 'i', 'f', 0, 0,
+				'M', 'M', 0, 42, 0, 0, 0, 8,
+				0, 1,
+				0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, 6, 0, 0,
+				0, 0, 0, 0
+		};
+
+		int app0End = 4 + ((content[4] & 0xFF) << 8 | content[5] & 0xFF);
+		var rotated = new ByteArrayOutputStream();
+		rotated.write(content, 0, app0End);
+		rotated.write(exif);
+		rotated.write(content, app0End, content.length - app0End);
+
+		return rotated.toByteArray();
+	}
+
 	@Test
 	void resizeStaticWebpImage() throws Exception {
 		var webpImage = loadResource("static.webp");
@@ -215,6 +295,27 @@ class MediaHelperTest {
 		assertVideoConsistency(result, 512, 274, 10F, 1_000L);
 	}
 
+	@Test
+	void gifBitrateWithUnknownFrameRate() throws Exception {
+		var mediaInfo = MediaHelper.retrieveMultimediaInfo(loadResource("valid.gif"));
+
+		mediaInfo.getVideo().setFrameRate(0F);
+		var unknownFrameRateBitrate = MediaHelper.estimateBitrate(mediaInfo);
+		mediaInfo.getVideo().setFrameRate(MAX_VIDEO_FRAMES);
+
+		assertThat(unknownFrameRateBitrate, is(equalTo(MediaHelper.estimateBitrate(mediaInfo))));
+	}
+
+	@Test
+	void gifBitrateWithUnknownSize() throws Exception {
+		var mediaInfo = MediaHelper.retrieveMultimediaInfo(loadResource("valid.gif"));
+		var knownSizeBitrate = MediaHelper.estimateBitrate(mediaInfo);
+
+		mediaInfo.getVideo().setSize(new VideoSize(0, 0));
+
+		assertThat(MediaHelper.estimateBitrate(mediaInfo), is(greaterThanOrEqualTo(knownSizeBitrate)));
+	}
+
 	@Test
 	void convertAviVideo() throws Exception {
 		var aviVideo = loadResource("valid.avi");
@@ -247,6 +348,14 @@ class MediaHelperTest {
 		assertThat(result, is(nullValue()));
 	}
 
+	@Test
+	void noAnimatedStickerConversionNeededInMemory() throws Exception {
+		var animatedSticker = Files.readAllBytes(loadResource("animated_sticker.tgs").toPath());
+		var result = MediaHelper.convert(animatedSticker);
+
+		assertThat(result, is(nullValue()));
+	}
+
 	@Test
 	void nonCompliantAnimatedSticker() {
 		var animatedSticker = loadResource("non_compliant_animated_sticker.tgs");
@@ -0,0 +1,65 @@
+package com.github.stickerifier.stickerify.media;
+
+import static com.github.stickerifier.stickerify.ResourceHelper.loadResource;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+
+import org.apache.tika.Tika;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.ByteArrayOutputStream;
+
+class MimeTypeDetectorTest {
+
+	private final MimeTypeDetector detector = new MimeTypeDetector();
+
+	@ParameterizedTest
+	@ValueSource(strings = { "animated.webp", "animated_sticker.tgs", "big.jpg", "big.png", "corrupted.mp4",
+			"document.txt", "favicon.ico", "no_conversion_needed.webm", "static.webp", "unsupported_archive.gz",
+			"valid.gif", "valid.psd", "valid.svg", "valid.tiff" })
+	void detectionMatchesTika(String fileName) throws Exception {
+		var file = loadResource(fileName);
+
+		assertThat(detector.detect(file), is(equalTo(new Tika().detect(file))));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = { "webm", "matroska", "unknown" })
+	void ebmlDetectionMatchesTika(String docType) {
+		var header = ebmlHeader(docType);
+
+		assertThat(detector.detect(header), is(equalTo(new Tika().detect(header))));
+	}
+
+	@Test
+	void matroskaIsDetectedAsVideo() {
+		assertThat(detector.detect(ebmlHeader("matroska")), is(equalTo("video/x-matroska")));
+	}
+
+	/**
+	 * Builds the beginning of an EBML file declaring passed-in document type, followed by the start of its segment.
+	 */
+	private static byte[] ebmlHeader(String docType) {
+		var docTypeBytes = docType.getBytes(US_ASCII);
+		var elements = new ByteArrayOutputStream();
+		elements.writeBytes(new byte[] { 0x42, (byte) 0x86, (byte) 0x81, 0x01 });
+		elements.writeBytes(new byte[] { 0x42, (byte) 0xF7, (byte) 0x81, 0x01 });
+		elements.writeBytes(new byte[] { 0x42, (byte) 0xF2, (byte) 0x81, 0x04 });
+		elements.writeBytes(new byte[] { 0x42, (byte) 0xF3, (byte) 0x81, 0x08 });
+		elements.writeBytes(new byte[] { 0x42, (byte) 0x82, (byte) (0x80 | docTypeBytes.length) });
+		elements.writeBytes(docTypeBytes);
+		elements.writeBytes(new byte[] { 0x42, (byte) 0x87, (byte) 0x81, 0x04 });
+		elements.writeBytes(new byte[] { 0x42, (byte) 0x85, (byte) 0x81, 0x02 });
+
+		var header = new ByteArrayOutputStream();
+		header.writeBytes(new byte[] { 0x1A, 0x45, (byte) 0xDF, (byte) 0xA3, (byte) (0x80 | elements.size()) });
+		header.writeBytes(elements.toByteArray());
+		header.writeBytes(new byte[] { 0x18, 0x53, (byte) 0x80, 0x67, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF });
+
+		return header.toByteArray();
+	}
+}
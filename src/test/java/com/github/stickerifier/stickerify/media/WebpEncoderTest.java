@@ -0,0 +1,26 @@
+package com.github.stickerifier.stickerify.media;
+
+import static com.github.stickerifier.stickerify.ResourceHelper.loadResource;
+import static com.github.stickerifier.stickerify.media.MediaConstraints.MAX_IMAGE_FILE_SIZE;
+import static com.github.stickerifier.stickerify.media.MediaConstraints.MAX_SIDE_LENGTH;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import com.github.stickerifier.stickerify.media.WebpEncoder.ImageStatistics;
+import com.sksamuel.scrimage.webp.WebpWriter;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class WebpEncoderTest {
+
+	@ParameterizedTest
+	@ValueSource(strings = { "big.jpg", "big.png", "detailed.jpg", "favicon.ico", "small_image.png", "static.webp",
+			"valid.png", "valid.psd", "valid.svg", "valid.tiff" })
+	void predictionNeverRulesOutFittingLosslessEncoding(String fileName) throws Exception {
+		var image = MediaHelper.toImage(MediaSource.of(loadResource(fileName))).max(MAX_SIDE_LENGTH, MAX_SIDE_LENGTH);
+		var losslessSize = image.bytes(WebpWriter.DEFAULT.withLossless().withZ(9)).length;
+		var statistics = ImageStatistics.of(image);
+
+		assertThat("the lossless encoding of " + fileName + " is " + losslessSize + " bytes, but " + statistics + " ruled it out",
+				losslessSize > MAX_IMAGE_FILE_SIZE || statistics.mayFitLossless());
+	}
+}
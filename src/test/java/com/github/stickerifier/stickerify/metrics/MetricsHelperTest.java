@@ -0,0 +1,68 @@
+package com.github.stickerifier.stickerify.metrics;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.github.stickerifier.stickerify.scheduler.LaneStatistics;
+import com.github.stickerifier.stickerify.scheduler.WorkClass;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+class MetricsHelperTest {
+
+	@Test
+	void stageDurationsAreLabelledWithMimeTypeAndOutcome() {
+		var request = MetricsHelper.startRequest();
+		request.recordStage(Stage.DOWNLOAD, System.nanoTime());
+		request.recordMimeType("image/png");
+		request.recordOutcome("FILE_READY");
+		MetricsHelper.finishRequest(request);
+
+		var metrics = MetricsHelper.scrape(Map.of(), 0, 0, 10);
+
+		assertThat(metrics, containsString("# TYPE stickerify_stage_duration_seconds histogram"));
+		assertThat(metrics, containsString("stickerify_stage_duration_seconds_bucket{stage=\"download\",mime_type=\"image/png\",outcome=\"FILE_READY\",le=\"+Inf\"}"));
+		assertThat(metrics, containsString("stickerify_requests_total{outcome=\"FILE_READY\"}"));
+	}
+
+	@Test
+	void workOutsideRequestsIsNotRecorded() {
+		RequestMetrics.NONE.recordOutcome("TOO_MANY_REQUESTS");
+
+		var outcome = MetricsHelper.finishRequest(RequestMetrics.NONE);
+
+		assertThat(outcome, is(nullValue()));
+		assertThat(MetricsHelper.scrape(Map.of(), 0, 0, 10), not(containsString("outcome=\"TOO_MANY_REQUESTS\"")));
+	}
+
+	@Test
+	void laneStatisticsAreExposed() {
+		var lanes = Map.of(WorkClass.VIDEO, new LaneStatistics(3, 2, 1, 5, 4, 2_500_000_000L, 1000));
+
+		var metrics = MetricsHelper.scrape(lanes, 2, 3, 10);
+
+		assertThat(metrics, containsString("stickerify_lane_queued_tasks{lane=\"video\"} 3\n"));
+		assertThat(metrics, containsString("stickerify_lane_active_workers{lane=\"video\"} 1\n"));
+		assertThat(metrics, containsString("stickerify_lane_wait_seconds_sum{lane=\"video\"} 2.5\n"));
+		assertThat(metrics, containsString("stickerify_lane_wait_seconds_count{lane=\"video\"} 5\n"));
+		assertThat(metrics, containsString("stickerify_processes_running 2\n"));
+		assertThat(metrics, containsString("stickerify_process_budget_used 3\n"));
+		assertThat(metrics, containsString("stickerify_process_budget 10\n"));
+	}
+
+	@Test
+	void videoEncodingAttemptsAreCounted() {
+		MetricsHelper.recordEncodingAttempts(2, 1);
+		MetricsHelper.recordVideoSize(200_000);
+
+		var metrics = MetricsHelper.scrape(Map.of(), 0, 0, 10);
+
+		assertThat(metrics, containsString("# TYPE stickerify_video_encoding_attempts_total counter"));
+		assertThat(metrics, containsString("stickerify_video_encoding_aborted_attempts_total "));
+		assertThat(metrics, containsString("stickerify_video_encoded_bytes_total "));
+	}
+}
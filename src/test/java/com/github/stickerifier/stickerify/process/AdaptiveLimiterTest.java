@@ -0,0 +1,168 @@
+package com.github.stickerifier.stickerify.process;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.both;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.nullValue;
+
+import com.github.stickerifier.stickerify.cancellation.CancellationToken;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntToDoubleFunction;
+
+class AdaptiveLimiterTest {
+
+	private final AtomicLong clock = new AtomicLong();
+
+	@Test
+	void limitSettlesAroundBestThroughput() throws Exception {
+		var limiter = new AdaptiveLimiter(5, 1, 16, clock::get);
+
+		simulate(limiter, limit -> 2.0 * Math.min(limit, 8), 4_000);
+
+		assertThat(limiter.getLimit(), is(both(greaterThanOrEqualTo(7)).and(lessThanOrEqualTo(9))));
+	}
+
+	@Test
+	void limitDoesNotExceedMaximum() throws Exception {
+		var limiter = new AdaptiveLimiter(5, 1, 6, clock::get);
+
+		simulate(limiter, limit -> 2.0 * limit, 4_000);
+
+		assertThat(limiter.getLimit(), is(equalTo(6)));
+	}
+
+	@Test
+	void limitDoesNotChangeIfNeverReached() throws Exception {
+		var limiter = new AdaptiveLimiter(5, 1, 16, clock::get);
+
+		for (int i = 0; i < 1_000; i++) {
+			var permit = limiter.acquire(1);
+			clock.addAndGet(SECONDS.toNanos(1) / 10);
+			limiter.release(permit);
+		}
+
+		assertThat(limiter.getLimit(), is(equalTo(5)));
+	}
+
+	@Test
+	void cheapProcessesRunAlongsideExpensiveOnes() throws Exception {
+		var limiter = new AdaptiveLimiter(10, 1, 16, clock::get);
+
+		var expensive = limiter.acquire(8);
+		var waiting = Thread.ofVirtual().start(() -> acquire(limiter, 8));
+		awaitWaiting(waiting);
+
+		limiter.acquire(1);
+		limiter.acquire(1);
+
+		assertThat(limiter.getUsedBudget(), is(equalTo(10)));
+		assertThat(waiting.isAlive(), is(true));
+
+		limiter.release(expensive);
+		waiting.join();
+	}
+
+	@Test
+	void processesOvertakeStarvingOneOnlyWithinTheBudgetItDoesNotNeed() throws Exception {
+		var limiter = new AdaptiveLimiter(10, 1, 16, clock::get);
+
+		var expensive = limiter.acquire(6);
+		var starving = Thread.ofVirtual().start(() -> acquire(limiter, 8));
+		awaitWaiting(starving);
+		clock.addAndGet(SECONDS.toNanos(2));
+
+		var overtaking = limiter.acquire(2);
+		assertThat(overtaking.overtaking(), is(true));
+
+		var cheap = Thread.ofVirtual().start(() -> acquire(limiter, 2));
+		cheap.join(200);
+		assertThat(cheap.isAlive(), is(true));
+
+		limiter.release(expensive);
+		starving.join();
+		assertThat(limiter.getUsedBudget(), is(equalTo(10)));
+
+		limiter.release(overtaking);
+		cheap.join();
+		assertThat(limiter.getUsedBudget(), is(equalTo(10)));
+	}
+
+	@Test
+	void processCostingMoreThanBudgetRunsAlone() throws Exception {
+		var limiter = new AdaptiveLimiter(4, 1, 16, clock::get);
+
+		var permit = limiter.acquire(8);
+
+		assertThat(permit.cost(), is(equalTo(4)));
+		assertThat(limiter.getUsedBudget(), is(equalTo(4)));
+	}
+
+	@Test
+	void cancellationStopsWaitingWithoutInterruptingTheThread() throws Exception {
+		var limiter = new AdaptiveLimiter(4, 1, 16, clock::get);
+		var token = CancellationToken.create();
+		var permit = new AtomicReference<AdaptiveLimiter.Permit>();
+		var interrupted = new AtomicBoolean();
+
+		var running = limiter.acquire(4);
+		var waiting = Thread.ofVirtual().start(() -> {
+			try {
+				permit.set(limiter.acquire(4, token));
+			} catch (InterruptedException _) {
+				Thread.currentThread().interrupt();
+			}
+			interrupted.set(Thread.currentThread().isInterrupted());
+		});
+		awaitWaiting(waiting);
+
+		token.cancel("the request was cancelled");
+		waiting.join();
+
+		assertThat(permit.get(), is(nullValue()));
+		assertThat(interrupted.get(), is(false));
+		assertThat(limiter.getUsedBudget(), is(equalTo(4)));
+
+		limiter.release(running);
+		assertThat(limiter.acquire(4).cost(), is(equalTo(4)));
+	}
+
+	private static void acquire(AdaptiveLimiter limiter, int cost) {
+		try {
+			limiter.acquire(cost);
+		} catch (InterruptedException _) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void awaitWaiting(Thread thread) throws InterruptedException {
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(10);
+		}
+	}
+
+	/**
+	 * Keeps the limiter saturated, advancing the clock after every completion based on the throughput
+	 * the machine reaches at the current limit.
+	 */
+	private void simulate(AdaptiveLimiter limiter, IntToDoubleFunction throughput, int completions) throws InterruptedException {
+		var permits = new ArrayDeque<AdaptiveLimiter.Permit>();
+
+		for (int i = 0; i < completions; i++) {
+			while (limiter.getUsedBudget() < limiter.getLimit()) {
+				permits.add(limiter.acquire(1));
+			}
+
+			clock.addAndGet((long) (SECONDS.toNanos(1) / throughput.applyAsDouble(limiter.getLimit())));
+			limiter.release(permits.poll());
+		}
+	}
+}
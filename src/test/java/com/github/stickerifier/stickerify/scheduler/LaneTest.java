@@ -0,0 +1,153 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class LaneTest {
+
+	private static final Long USER = 1L;
+	private static final Long OTHER_USER = 2L;
+
+	private final UserThrottle throttle = new UserThrottle(100, 60, 10);
+
+	@Test
+	void workersDoNotExceedCapacity() {
+		var workers = new ArrayList<Runnable>();
+		var lane = new Lane(WorkClass.IMAGE, 2, new SharedWorkers(0), workers::add, throttle);
+
+		for (int i = 0; i < 5; i++) {
+			lane.submit(USER, () -> {});
+		}
+
+		assertThat(workers, hasSize(2));
+
+		var statistics = lane.getStatistics();
+		assertThat(statistics.queuedTasks(), is(equalTo(5)));
+		assertThat(statistics.queuedUsers(), is(equalTo(1)));
+		assertThat(statistics.activeWorkers(), is(equalTo(2)));
+	}
+
+	@Test
+	void sharedWorkersAreBorrowedAndGivenBack() {
+		var workers = new ArrayList<Runnable>();
+		var sharedWorkers = new SharedWorkers(1);
+		var imageLane = new Lane(WorkClass.IMAGE, 1, sharedWorkers, workers::add, throttle);
+		var videoLane = new Lane(WorkClass.VIDEO, 1, sharedWorkers, workers::add, throttle);
+
+		for (int i = 0; i < 3; i++) {
+			imageLane.submit(USER, () -> {});
+			videoLane.submit(USER, () -> {});
+		}
+
+		assertThat(workers, hasSize(3));
+		assertThat(imageLane.getStatistics().activeWorkers(), is(equalTo(2)));
+		assertThat(videoLane.getStatistics().activeWorkers(), is(equalTo(1)));
+		assertThat(sharedWorkers.available(), is(equalTo(0)));
+
+		while (!workers.isEmpty()) {
+			workers.removeFirst().run();
+		}
+
+		assertThat(imageLane.getStatistics().completedTasks(), is(equalTo(3L)));
+		assertThat(videoLane.getStatistics().completedTasks(), is(equalTo(3L)));
+		assertThat(sharedWorkers.available(), is(equalTo(1)));
+	}
+
+	@Test
+	void workerDrainsQueueInOrder() {
+		var workers = new ArrayList<Runnable>();
+		var lane = new Lane(WorkClass.VIDEO, 1, new SharedWorkers(0), workers::add, throttle);
+		var processed = new ArrayList<Integer>();
+
+		for (int i = 0; i < 3; i++) {
+			var task = i;
+			lane.submit(USER, () -> processed.add(task));
+		}
+
+		workers.getFirst().run();
+
+		assertThat(processed, contains(0, 1, 2));
+
+		var statistics = lane.getStatistics();
+		assertThat(statistics.queuedTasks(), is(equalTo(0)));
+		assertThat(statistics.activeWorkers(), is(equalTo(0)));
+		assertThat(statistics.completedTasks(), is(equalTo(3L)));
+	}
+
+	@Test
+	void failingTaskDoesNotStopWorker() {
+		var processed = new ArrayList<String>();
+		var lane = new Lane(WorkClass.TEXT, 1, new SharedWorkers(0), Runnable::run, throttle);
+
+		lane.submit(USER, () -> {
+			throw new IllegalStateException("failure");
+		});
+		lane.submit(USER, () -> processed.add("next"));
+
+		assertThat(processed, is(equalTo(List.of("next"))));
+		assertThat(lane.getStatistics().completedTasks(), is(equalTo(2L)));
+	}
+
+	@Test
+	void usersAreServedInRoundRobin() {
+		var workers = new ArrayList<Runnable>();
+		var lane = new Lane(WorkClass.IMAGE, 1, new SharedWorkers(0), workers::add, throttle);
+		var processed = new ArrayList<String>();
+
+		lane.submit(USER, () -> processed.add("first"));
+		lane.submit(USER, () -> processed.add("second"));
+		lane.submit(USER, () -> processed.add("third"));
+		lane.submit(OTHER_USER, () -> processed.add("other"));
+
+		workers.getFirst().run();
+
+		assertThat(processed, contains("first", "other", "second", "third"));
+	}
+
+	@Test
+	void throttledUserDoesNotDelayOthers() {
+		var workers = new ArrayList<Runnable>();
+		var lane = new Lane(WorkClass.IMAGE, 1, new SharedWorkers(0), workers::add, new UserThrottle(1, 60, 10));
+		var processed = new ArrayList<String>();
+
+		lane.submit(USER, () -> processed.add("first"));
+		lane.submit(USER, () -> processed.add("second"));
+		lane.submit(OTHER_USER, () -> processed.add("other"));
+
+		workers.getFirst().run();
+
+		assertThat(processed, contains("first", "other", "second"));
+	}
+
+	@Test
+	void interruptedWorkerHandsOverQueuedTasks() {
+		var workers = new ArrayList<Runnable>();
+		var lane = new Lane(WorkClass.IMAGE, 1, new SharedWorkers(0), workers::add, new UserThrottle(1, 60, 10));
+		var processed = new ArrayList<String>();
+
+		lane.submit(USER, () -> Thread.currentThread().interrupt());
+		lane.submit(USER, () -> processed.add("throttled"));
+
+		try {
+			workers.getFirst().run();
+		} finally {
+			Thread.interrupted();
+		}
+
+		assertThat(workers, hasSize(2));
+		assertThat(processed, is(empty()));
+
+		var statistics = lane.getStatistics();
+		assertThat(statistics.queuedTasks(), is(equalTo(1)));
+		assertThat(statistics.activeWorkers(), is(equalTo(1)));
+	}
+}
@@ -0,0 +1,151 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+import static com.github.stickerifier.stickerify.scheduler.Admission.ADMITTED;
+import static com.github.stickerifier.stickerify.scheduler.Admission.REFUSED;
+import static com.github.stickerifier.stickerify.scheduler.Admission.USER_LIMIT_REACHED;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.stickerifier.stickerify.telegram.model.TelegramRequest;
+import com.pengrad.telegrambot.utility.BotUtils;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Map;
+
+class RequestSchedulerTest {
+
+	private static final TelegramRequest TEXT_REQUEST = createRequest("""
+			"text": "/help"
+			""");
+
+	private static final TelegramRequest OTHER_USER_VIDEO_REQUEST = createRequest(654321, """
+			"video": {
+				"file_id": "video",
+				"file_unique_id": "video",
+				"file_size": 3000000
+			}
+			""");
+
+	private static final TelegramRequest VIDEO_REQUEST = createRequest("""
+			"video": {
+				"file_id": "video",
+				"file_unique_id": "video",
+				"file_size": 3000000
+			}
+			""");
+
+	private final UserThrottle throttle = new UserThrottle(100, 60, 10);
+	private final ArrayList<Runnable> workers = new ArrayList<>();
+
+	@Test
+	void requestsOverCountAreRefused() {
+		var scheduler = new RequestScheduler(workers::add, 3, Map.of(), throttle, 2, 1_000, 1_000);
+
+		assertThat(scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO), is(ADMITTED));
+		assertThat(scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO), is(ADMITTED));
+		assertThat(scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO), is(REFUSED));
+
+		workers.getFirst().run();
+
+		assertThat(scheduler.getAdmittedRequests(), is(equalTo(0)));
+		assertThat(scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO), is(ADMITTED));
+	}
+
+	@Test
+	void requestsOverWorkAreRefused() {
+		var scheduler = new RequestScheduler(workers::add, 3, Map.of(), throttle, 10, 50, 1_000);
+
+		assertThat(scheduler.trySchedule(VIDEO_REQUEST, () -> {}, Duration.ZERO), is(ADMITTED));
+		assertThat(scheduler.getAdmittedWork(), is(equalTo(48L)));
+		assertThat(scheduler.trySchedule(VIDEO_REQUEST, () -> {}, Duration.ZERO), is(REFUSED));
+		assertThat(scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO), is(ADMITTED));
+	}
+
+	@Test
+	void oversizedRequestIsAdmittedWhenIdle() {
+		var scheduler = new RequestScheduler(workers::add, 3, Map.of(), throttle, 10, 10, 1_000);
+
+		assertThat(scheduler.trySchedule(VIDEO_REQUEST, () -> {}, Duration.ZERO), is(ADMITTED));
+		assertThat(scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO), is(REFUSED));
+	}
+
+	@Test
+	void throttledUserCannotTakeTheWholeBudget() {
+		var throttledUser = new UserThrottle(1, 1, 10);
+		var scheduler = new RequestScheduler(workers::add, 3, Map.of(), throttledUser, 1_000, 10_000, 1_000);
+
+		var admittedVideos = 0;
+		while (scheduler.trySchedule(VIDEO_REQUEST, () -> {}, Duration.ZERO) == ADMITTED) {
+			admittedVideos++;
+		}
+
+		assertThat(admittedVideos, is(equalTo(20)));
+		assertThat(scheduler.trySchedule(VIDEO_REQUEST, () -> {}, Duration.ZERO), is(USER_LIMIT_REACHED));
+		assertThat(scheduler.trySchedule(OTHER_USER_VIDEO_REQUEST, () -> {}, Duration.ZERO), is(ADMITTED));
+		assertThat(scheduler.getAdmittedWork(), is(equalTo(21 * 48L)));
+	}
+
+	@Test
+	void lanesShareTheMaximumNumberOfWorkers() {
+		var scheduler = new RequestScheduler(workers::add, 4, Map.of(), throttle, 10, 1_000, 1_000);
+
+		for (int i = 0; i < 3; i++) {
+			scheduler.trySchedule(VIDEO_REQUEST, () -> {}, Duration.ZERO);
+			scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO);
+		}
+
+		assertThat(workers, hasSize(3));
+	}
+
+	@Test
+	void reservedWorkersCannotExceedTheMaximum() {
+		assertThrows(IllegalArgumentException.class, () -> new RequestScheduler(workers::add, 2, Map.of(), throttle, 10, 1_000, 1_000));
+		assertThrows(IllegalArgumentException.class, () -> new RequestScheduler(workers::add, 3, Map.of(WorkClass.TEXT, 0), throttle, 10, 1_000, 1_000));
+	}
+
+	@Test
+	void shutdownRefusesNewRequestsAndCancelsQueuedOnes() throws Exception {
+		var scheduler = new RequestScheduler(workers::add, 3, Map.of(), throttle, 10, 1_000, 1_000);
+
+		scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO);
+		scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO);
+
+		assertThat(scheduler.shutdown(), is(equalTo(2)));
+		assertThat(scheduler.trySchedule(TEXT_REQUEST, () -> {}, Duration.ZERO), is(REFUSED));
+		assertThat(scheduler.awaitTermination(Duration.ZERO), is(false));
+
+		assertThat(scheduler.cancelQueued(), is(equalTo(2)));
+		assertThat(scheduler.getAdmittedRequests(), is(equalTo(0)));
+		assertThat(scheduler.getAdmittedWork(), is(equalTo(0L)));
+		assertThat(scheduler.awaitTermination(Duration.ZERO), is(true));
+	}
+
+	private static TelegramRequest createRequest(String content) {
+		return createRequest(123456, content);
+	}
+
+	private static TelegramRequest createRequest(long userId, String content) {
+		var update = BotUtils.parseUpdate("""
+				{
+					"update_id": 1,
+					"message": {
+						"message_id": 1,
+						"from": {
+							"id": %d
+						},
+						"chat": {
+							"id": 1
+						},
+						%s
+					}
+				}
+				""".formatted(userId, content));
+
+		return new TelegramRequest(update.message());
+	}
+}
@@ -0,0 +1,32 @@
+package com.github.stickerifier.stickerify.scheduler;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+
+import org.junit.jupiter.api.Test;
+
+class UserThrottleTest {
+
+	@Test
+	void userIsThrottledAfterBurst() {
+		var throttle = new UserThrottle(2, 1, 10);
+
+		assertThat(throttle.tryAcquire(1L), is(equalTo(0L)));
+		assertThat(throttle.tryAcquire(1L), is(equalTo(0L)));
+		assertThat(throttle.tryAcquire(1L), is(greaterThan(0L)));
+		assertThat(throttle.tryAcquire(2L), is(equalTo(0L)));
+	}
+
+	@Test
+	void trackedUsersAreBounded() {
+		var throttle = new UserThrottle(2, 1, 3);
+
+		for (long user = 0; user < 10; user++) {
+			throttle.tryAcquire(user);
+		}
+
+		assertThat(throttle.trackedUsers(), is(equalTo(3)));
+	}
+}